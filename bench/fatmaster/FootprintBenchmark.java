@@ -0,0 +1,68 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Memory footprint benchmark: builds the whole directory tree of the volume
+ * (COPIES times, to make the measurement accurate on small volumes) and
+ * reports heap, retained per DirectoryEntry.
+ *
+ * Usage: FootprintBenchmark IMAGE [COPIES]
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class FootprintBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: FootprintBenchmark IMAGE [COPIES]");
+            return;
+        }
+        File image = new File(args[0]);
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        ArrayList<DirectoryEntry> roots = new ArrayList<>();
+        long entries = 0;
+        long before = usedMemory();
+        for (int i = 0; i < copies; i++) {
+            Fat fat = new Fat();
+            fat.open(image);
+            entries += load(fat.getRoot());
+            roots.add(fat.getRoot());
+            fat.close();
+        }
+        long after = usedMemory();
+        System.out.printf("Trees: %d\n", roots.size());
+        System.out.printf("Entries: %d\n", entries);
+        System.out.printf("Heap used by tree (bytes): %d\n", after - before);
+        System.out.printf("Bytes per entry: %.1f\n", (double) (after - before) / Math.max(1, entries));
+    }
+
+    /**
+     * Retrieves children of the whole subtree
+     *
+     * @return Count of entries in subtree (including "." and "..")
+     */
+    private static long load(DirectoryEntry entry) throws IOException {
+        long count = 1;
+        if (entry.isDir()) {
+            entry.retrieveChildren();
+            for (DirectoryEntry child : entry.getRealChildren()) {
+                count += load(child);
+            }
+            count += entry.children.size() - entry.getRealChildrenCount();
+        }
+        return count;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
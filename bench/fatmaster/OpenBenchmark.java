@@ -0,0 +1,66 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Startup latency benchmark: measures how long it takes to open the volume
+ * and to get to the file, as FatMaster does for "-p PATH".
+ *
+ * Usage: OpenBenchmark IMAGE [PATH] [ITERATIONS]
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class OpenBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: OpenBenchmark IMAGE [PATH] [ITERATIONS]");
+            return;
+        }
+        File image = new File(args[0]);
+        String path = args.length > 1 ? args[1] : "/";
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        //Warm up, so JIT compilation doesn't get into results
+        run(image, path, iterations);
+        long[] times = run(image, path, iterations);
+        System.out.printf("open:             %.1f us/op\n", times[0] / 1e3 / iterations);
+        System.out.printf("open + find:      %.1f us/op\n", times[1] / 1e3 / iterations);
+        System.out.printf("open + freeSpace: %.1f us/op\n", times[2] / 1e3 / iterations);
+    }
+
+    /**
+     * Runs every scenario iterations times
+     *
+     * @return Total times of scenarios in nanoseconds
+     */
+    private static long[] run(File image, String path, int iterations) throws IOException {
+        long[] times = new long[3];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            Fat fat = new Fat();
+            fat.open(image);
+            times[0] += System.nanoTime() - start;
+            fat.close();
+
+            start = System.nanoTime();
+            fat = new Fat();
+            fat.open(image);
+            if (fat.find(path) == null) {
+                throw new IOException("No such path: " + path);
+            }
+            times[1] += System.nanoTime() - start;
+            fat.close();
+
+            start = System.nanoTime();
+            fat = new Fat();
+            fat.open(image);
+            fat.getFreeSpace();
+            times[2] += System.nanoTime() - start;
+            fat.close();
+        }
+        return times;
+    }
+}
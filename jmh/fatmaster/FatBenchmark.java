@@ -0,0 +1,186 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of FAT hot paths: following cluster chains, reading file
+ * data, parsing directories, path lookup and extraction. Every trial runs
+ * against image, generated by ImageGenerator with given type, size,
+ * fragmentation and fan-out. Bytes/s are reported by "bytes" counter, run
+ * with "-prof gc" to get allocation rate.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FatBenchmark {
+
+    /**
+     * Type of FAT
+     */
+    @Param({"12", "16", "32"})
+    public int type;
+    /**
+     * Size of volume in MB (0 - minimal size for the type and the tree)
+     */
+    @Param({"0"})
+    public long sizeMB;
+    /**
+     * Size of cluster in bytes (0 - 4096 for FAT12, 2048 for FAT16, 512 for
+     * FAT32)
+     */
+    @Param({"0"})
+    public int clusterSize;
+    /**
+     * Fragmentation ratio of chains
+     */
+    @Param({"0", "0.3"})
+    public double fragmentation;
+    /**
+     * Count of subdirectories in every directory
+     */
+    @Param({"4"})
+    public int fanOut;
+    /**
+     * Depth of directory tree
+     */
+    @Param({"2"})
+    public int depth;
+    /**
+     * Count of files in every directory
+     */
+    @Param({"16"})
+    public int filesPerDir;
+    /**
+     * Size of every file in bytes
+     */
+    @Param({"16384"})
+    public long fileSize;
+    /**
+     * Memory limit of FAT table cache in MB (-1 - FAT entries are read from
+     * the volume)
+     */
+    @Param({"-1", "64"})
+    public long fatCacheMB;
+    private File image;
+    private File output;
+    private Fat fat;
+    /**
+     * Path of the last file of the deepest directory
+     */
+    private String path;
+    private DirectoryEntry file;
+    private ClusterChain chain;
+    private byte[] buffer;
+
+    /**
+     * Count of processed bytes, reported as bytes/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = File.createTempFile("fatbench", ".img");
+        output = File.createTempFile("fatbench", ".out");
+        ImageGenerator generator = new ImageGenerator();
+        generator.setType(type);
+        generator.setSize(sizeMB << 20);
+        generator.setClusterSize(clusterSize > 0 ? clusterSize : (type == 12 ? 4096 : (type == 16 ? 2048 : 512)));
+        generator.setFragmentation(fragmentation);
+        generator.setFanOut(fanOut);
+        generator.setDepth(depth);
+        generator.setFilesPerDir(filesPerDir);
+        generator.setFileSize(fileSize);
+        generator.generate(image);
+        fat = new Fat();
+        fat.setFatCacheLimit(fatCacheMB < 0 ? -1 : fatCacheMB << 20);
+        fat.open(image);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("/Dir ").append(fanOut - 1).append('_').append(i);
+        }
+        path = sb.append("/File number ").append(filesPerDir - 1).append(" of depth ").append(depth).append(".txt").toString();
+        file = fat.find(path);
+        if (file == null) {
+            throw new IllegalStateException("No file " + path + " in generated image");
+        }
+        chain = file.getChain();
+        buffer = new byte[(int) file.getFileSize()];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fat.close();
+        image.delete();
+        output.delete();
+    }
+
+    @Benchmark
+    public long getNextClus() throws IOException {
+        long count = 0;
+        for (long clus = file.dataClus; fat.isValidClus(clus); clus = fat.getNextClus(clus)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int readBytes(Bytes counter) throws IOException {
+        int read = fat.readBytes(chain, 0, buffer, 0, buffer.length);
+        counter.bytes += read;
+        return read;
+    }
+
+    @Benchmark
+    public DirectoryEntry retrieveChildren() throws IOException {
+        DirectoryEntry root = new DirectoryEntry(fat);
+        root.isRootDir = true;
+        root.readRoot();
+        root.retrieveChildren();
+        return root;
+    }
+
+    @Benchmark
+    public DirectoryEntry find() throws IOException {
+        return fat.getRoot().find(path);
+    }
+
+    @Benchmark
+    public long write(Bytes counter) throws IOException {
+        long written = file.writeData(output);
+        counter.bytes += written;
+        return written;
+    }
+}
@@ -0,0 +1,169 @@
+package fatmaster;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Batch mode: executes list of commands (see CommandRunner) against one
+ * opened volume. Commands are read from file (or stdin), one per line,
+ * arguments are separated by tabs (or by spaces, if line has no tabs), empty
+ * lines and lines starting with '#' are skipped.
+ * <p>
+ * Before execution paths of all commands are resolved in sorted order, every
+ * unique path once: siblings are resolved one after another, so every
+ * directory is read only once and stays warm while it's needed. Result of
+ * every command is written to stdout right away, preceded by header line
+ * "==> N: COMMAND LINE" (N is number of line in input), which always starts
+ * a new line (line break is added, if output of the previous command didn't
+ * end with one). Errors are printed to stderr with the same prefix,
+ * execution continues after them.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class BatchRunner {
+
+    private final Fat fat;
+    private final LineTrackingOutputStream out;
+    /**
+     * Commands (split to arguments) with numbers of their lines
+     */
+    private final ArrayList<String[]> commands = new ArrayList<>();
+    private final ArrayList<Integer> lineNumbers = new ArrayList<>();
+    /**
+     * Resolved paths (normalized), null values stand for missing ones
+     */
+    private final HashMap<String, DirectoryEntry> resolved = new HashMap<>();
+    private int failed = 0;
+
+    /**
+     * Creates batch runner
+     *
+     * @param fat Opened volume
+     */
+    BatchRunner(Fat fat) {
+        this.fat = fat;
+        out = new LineTrackingOutputStream(new BufferedOutputStream(System.out, 1 << 16));
+    }
+
+    /**
+     * Reads commands
+     *
+     * @param file File with commands, "-" means stdin
+     * @throws IOException
+     */
+    void load(String file) throws IOException {
+        InputStream is = file.equals("-") ? System.in : new FileInputStream(file);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                String[] args = CommandRunner.split(line);
+                if (CommandRunner.isCommand(args[0]) && CommandRunner.getPath(args) != null) {
+                    args[1] = Fat.normalizePath(args[1]);
+                }
+                commands.add(args);
+                lineNumbers.add(number);
+            }
+        }
+    }
+
+    /**
+     * Resolves unique paths of commands in sorted order
+     *
+     * @throws IOException
+     */
+    private void resolve() throws IOException {
+        TreeSet<String> paths = new TreeSet<>();
+        for (String[] args : commands) {
+            String path = CommandRunner.getPath(args);
+            if (path != null && CommandRunner.isCommand(args[0])) {
+                paths.add(path);
+            }
+        }
+        for (String path : paths) {
+            resolved.put(path, fat.getRoot().find(path));
+        }
+    }
+
+    /**
+     * Executes loaded commands, then prints summary to stderr
+     *
+     * @throws IOException
+     */
+    void run() throws IOException {
+        long startTime = System.nanoTime();
+        resolve();
+        long resolveTime = System.nanoTime() - startTime;
+        for (int i = 0; i < commands.size(); i++) {
+            String[] args = commands.get(i);
+            String header = "==> " + lineNumbers.get(i) + ": " + join(args);
+            if (!out.atLineStart) {
+                out.write('\n');
+            }
+            out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                CommandRunner.execute(fat, args, resolved, out);
+            } catch (IOException | RuntimeException e) {
+                failed++;
+                out.flush();
+                System.err.println(header + ": " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+        out.flush();
+        System.err.printf("Batch: %d commands, %d failed, %d unique paths resolved in %d ms, total %d ms\n",
+                commands.size(), failed, resolved.size(), resolveTime / 1000000, (System.nanoTime() - startTime) / 1000000);
+    }
+
+    private static String join(String[] args) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(args[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stream, which remembers, whether the last written byte is a line break
+     */
+    private static class LineTrackingOutputStream extends FilterOutputStream {
+
+        boolean atLineStart = true;
+
+        LineTrackingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            atLineStart = b == '\n';
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (len > 0) {
+                atLineStart = b[off + len - 1] == '\n';
+            }
+        }
+    }
+}
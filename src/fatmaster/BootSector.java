@@ -0,0 +1,99 @@
+package fatmaster;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Boot sector (BPB) of FAT volume, read once and accessed through typed
+ * little-endian getters.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class BootSector {
+
+    /**
+     * Count of bytes, read from the beginning of the volume
+     */
+    static final int SIZE = 512;
+    /**
+     * Offset of the extended BPB fields (after BPB_TotSec32)
+     */
+    static final int EXT_OFFSET = 36;
+    /**
+     * Bytes of the boot sector
+     */
+    final byte[] data;
+    /**
+     * Little-endian view of data
+     */
+    private final ByteBuffer buffer;
+
+    BootSector(byte[] data) {
+        this.data = data;
+        buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int getUnsignedShort(int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private long getUnsignedInt(int offset) {
+        return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+
+    int getBytsPerSec() {
+        return getUnsignedShort(11);
+    }
+
+    int getSecPerClus() {
+        return data[13] & 0xFF;
+    }
+
+    int getRsvdSecCnt() {
+        return getUnsignedShort(14);
+    }
+
+    int getNumFATs() {
+        return data[16] & 0xFF;
+    }
+
+    int getRootEntCnt() {
+        return getUnsignedShort(17);
+    }
+
+    int getTotSec16() {
+        return getUnsignedShort(19);
+    }
+
+    int getFATSz16() {
+        return getUnsignedShort(22);
+    }
+
+    long getTotSec32() {
+        return getUnsignedInt(32);
+    }
+
+    long getFATSz32() {
+        return getUnsignedInt(36);
+    }
+
+    long getRootClus() {
+        return getUnsignedInt(44);
+    }
+
+    int getFSInfo() {
+        return getUnsignedShort(48);
+    }
+
+    /**
+     * Volume serial number (BS_VolID)
+     *
+     * @param type Type of FAT volume (12, 16 or 32)
+     * @return Volume serial number
+     */
+    long getVolID(int type) {
+        return getUnsignedInt(type == 32 ? 67 : 39);
+    }
+}
@@ -0,0 +1,206 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Volume with block cache, wrapping another volume. Small reads (FAT entries,
+ * boot sector, directory clusters) are served from fixed-size blocks, least
+ * recently used blocks are dropped. When misses go block after block, more
+ * blocks are read ahead with every miss (window is doubled up to
+ * MAX_READAHEAD blocks), random miss resets the window. Big reads and
+ * transferTo() bypass the cache.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class CachedVolume extends Volume {
+
+    /**
+     * Size of one block in bytes
+     */
+    static final int BLOCK_SIZE = 1 << 14;
+    /**
+     * Maximum count of blocks, read ahead on one miss
+     */
+    static final int MAX_READAHEAD = 64;
+    /**
+     * Reads bigger than this count of bytes bypass the cache
+     */
+    static final int BYPASS_SIZE = 4 * BLOCK_SIZE;
+    /**
+     * Default memory budget of the cache in bytes
+     */
+    static final long DEFAULT_LIMIT = 16 << 20;
+    /**
+     * Wrapped volume
+     */
+    private final Volume inner;
+    /**
+     * Size of volume in bytes, blocks aren't read beyond it
+     */
+    private final long size;
+    /**
+     * Cached blocks, keys - block numbers
+     */
+    private final LinkedHashMap<Long, byte[]> blocks;
+    /**
+     * Block, following the last block loaded by miss (or readahead)
+     */
+    private long nextBlock = -1;
+    /**
+     * Current count of blocks to read ahead
+     */
+    private int readahead = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long readaheadBlocks = 0;
+    private long bypassed = 0;
+
+    /**
+     * Wraps volume with block cache
+     *
+     * @param inner Volume to wrap
+     * @param limit Maximum amount of memory (in bytes) for cached blocks
+     * @param size Size of volume in bytes
+     */
+    public CachedVolume(Volume inner, long limit, long size) {
+        super(inner.file);
+        this.inner = inner;
+        this.size = size;
+        final int maxBlocks = (int) Math.max(MAX_READAHEAD + 1, Math.min(Integer.MAX_VALUE, limit / BLOCK_SIZE));
+        blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    /**
+     * Monitor of the instance guards only the map of blocks, readahead state
+     * and counters, reads of the wrapped volume are done outside of it
+     */
+    @Override
+    public void read(long pos, byte[] bytes, int offset, int len) throws IOException {
+        if (len > BYPASS_SIZE || pos + len > size) {
+            synchronized (this) {
+                bypassed++;
+            }
+            inner.read(pos, bytes, offset, len);
+            return;
+        }
+        while (len > 0) {
+            long num = pos / BLOCK_SIZE;
+            int blockOffset = (int) (pos % BLOCK_SIZE);
+            int count = Math.min(len, BLOCK_SIZE - blockOffset);
+            byte[] block;
+            synchronized (this) {
+                block = blocks.get(num);
+                if (block != null) {
+                    hits++;
+                }
+            }
+            if (block == null) {
+                block = load(num);
+            }
+            System.arraycopy(block, blockOffset, bytes, offset, count);
+            pos += count;
+            offset += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Loads missed block and blocks after it (if access is sequential) with
+     * one read of the wrapped volume. Concurrent misses of the same block may
+     * load it twice, the last loaded copy stays in the cache.
+     *
+     * @param num Number of missed block
+     * @return Missed block
+     * @throws IOException
+     */
+    private byte[] load(long num) throws IOException {
+        int count = 1;
+        synchronized (this) {
+            misses++;
+            if (num == nextBlock) {
+                readahead = Math.min(MAX_READAHEAD, Math.max(1, readahead * 2));
+            } else {
+                readahead = 0;
+            }
+            long lastBlock = (size - 1) / BLOCK_SIZE;
+            while (count <= readahead && num + count <= lastBlock && !blocks.containsKey(num + count)) {
+                count++;
+            }
+            readaheadBlocks += count - 1;
+            nextBlock = num + count;
+        }
+        long pos = num * BLOCK_SIZE;
+        byte[] data = new byte[(int) Math.min((long) count * BLOCK_SIZE, size - pos)];
+        inner.read(pos, data, 0, data.length);
+        byte[][] loaded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            loaded[i] = new byte[BLOCK_SIZE];
+            System.arraycopy(data, i * BLOCK_SIZE, loaded[i], 0, Math.min(BLOCK_SIZE, data.length - i * BLOCK_SIZE));
+        }
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                blocks.put(num + i, loaded[i]);
+            }
+        }
+        return loaded[0];
+    }
+
+    @Override
+    public void transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+        inner.transferTo(pos, count, target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            blocks.clear();
+        }
+        inner.close();
+    }
+
+    /**
+     * Count of block lookups, served from the cache
+     *
+     * @return Count of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Count of block lookups, which required reading the volume
+     *
+     * @return Count of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Count of blocks, loaded by readahead
+     *
+     * @return Count of blocks
+     */
+    public synchronized long getReadaheadBlocks() {
+        return readaheadBlocks;
+    }
+
+    /**
+     * Count of reads, which bypassed the cache
+     *
+     * @return Count of reads
+     */
+    public synchronized long getBypassed() {
+        return bypassed;
+    }
+}
@@ -0,0 +1,182 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Cluster chain, resolved to the list of extents (runs of contiguous
+ * clusters). Extent i starts from cluster getStart(i) and consists of
+ * getLength(i) clusters.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class ClusterChain {
+
+    /**
+     * Empty chain (e.g. for empty files)
+     */
+    static final ClusterChain EMPTY = new ClusterChain(new long[0], new long[0], 0);
+    /**
+     * First clusters of extents
+     */
+    private final long[] starts;
+    /**
+     * Lengths of extents in clusters
+     */
+    private final long[] lengths;
+    /**
+     * Count of extents
+     */
+    private final int size;
+    /**
+     * Total count of clusters in chain
+     */
+    private final long clusterCount;
+    /**
+     * Index (in chain) of the first cluster of every extent, computed on the
+     * first search
+     */
+    private volatile long[] firstIndexes;
+
+    private ClusterChain(long[] starts, long[] lengths, int size) {
+        this.starts = starts;
+        this.lengths = lengths;
+        this.size = size;
+        long count = 0;
+        for (int i = 0; i < size; i++) {
+            count += lengths[i];
+        }
+        clusterCount = count;
+    }
+
+    /**
+     * Creates chain from the list of extents
+     *
+     * @param starts First clusters of extents
+     * @param lengths Lengths of extents in clusters
+     * @return Chain instance
+     */
+    static ClusterChain create(long[] starts, long[] lengths) {
+        return new ClusterChain(starts, lengths, starts.length);
+    }
+
+    /**
+     * Follows the cluster chain and builds the list of its extents
+     *
+     * @param fat Fat instance
+     * @param clus First cluster of the chain
+     * @param maxClusters Maximum count of clusters to follow (-1 means follow
+     * the whole chain)
+     * @return Resolved chain
+     * @throws IOException
+     */
+    static ClusterChain resolve(Fat fat, long clus, long maxClusters) throws IOException {
+        long limit = fat.countOfClusters;
+        if (maxClusters >= 0 && maxClusters < limit) {
+            limit = maxClusters;
+        }
+        if (!fat.isValidClus(clus) || limit == 0) {
+            return EMPTY;
+        }
+        long[] starts = new long[4];
+        long[] lengths = new long[4];
+        int size = 0;
+        starts[0] = clus;
+        lengths[0] = 1;
+        for (long count = 1; count < limit; count++) {
+            long next = fat.getNextClus(clus);
+            if (!fat.isValidClus(next)) {
+                break;
+            }
+            if (next == clus + 1) {
+                lengths[size]++;
+            } else {
+                if (++size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    lengths = Arrays.copyOf(lengths, size * 2);
+                }
+                starts[size] = next;
+                lengths[size] = 1;
+            }
+            clus = next;
+        }
+        size++;
+        return new ClusterChain(Arrays.copyOf(starts, size), Arrays.copyOf(lengths, size), size);
+    }
+
+    /**
+     * Count of extents in chain
+     *
+     * @return Count of extents
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * First cluster of extent
+     *
+     * @param i Index of extent
+     * @return Cluster number
+     */
+    public long getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * Length of extent
+     *
+     * @param i Index of extent
+     * @return Count of clusters
+     */
+    public long getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Index of the first cluster of extent in chain
+     *
+     * @param i Index of extent
+     * @return Count of clusters in previous extents
+     */
+    public long getFirstIndex(int i) {
+        return getFirstIndexes()[i];
+    }
+
+    /**
+     * Finds extent, containing given cluster of chain (binary search)
+     *
+     * @param index Index of cluster in chain (0 - the first cluster)
+     * @return Index of extent, -1 if chain doesn't have such cluster
+     */
+    public int findExtent(long index) {
+        if (index < 0 || index >= clusterCount) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(getFirstIndexes(), 0, size, index);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private long[] getFirstIndexes() {
+        long[] indexes = firstIndexes;
+        if (indexes == null) {
+            indexes = new long[size];
+            for (int i = 1; i < size; i++) {
+                indexes[i] = indexes[i - 1] + lengths[i - 1];
+            }
+            firstIndexes = indexes;
+        }
+        return indexes;
+    }
+
+    /**
+     * Total count of clusters in chain
+     *
+     * @return Count of clusters
+     */
+    public long getClusterCount() {
+        return clusterCount;
+    }
+}
@@ -0,0 +1,186 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.Map;
+
+/**
+ * Executor of text commands against opened volume, used by daemon and batch
+ * modes. Commands (arguments in brackets are optional):
+ * <pre>
+ * info [PATH [DEPTH [FORMAT]]]   - like "-i"
+ * list [PATH [DEPTH [FORMAT]]]   - like "-l"
+ * print PATH [OFFSET [LENGTH]]   - like "-p"
+ * save PATH DEST                 - like "-s"
+ * stat PATH                      - JSON line with information about entry
+ * find [PATH] [CRITERIA...]      - paths of entries, matching criteria (see FindQuery)
+ * </pre>
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class CommandRunner {
+
+    private CommandRunner() {
+    }
+
+    /**
+     * Splits command line to arguments: by tabs, if line contains them (so
+     * arguments may contain spaces), otherwise by spaces
+     *
+     * @param line Command line
+     * @return Arguments
+     */
+    static String[] split(String line) {
+        if (line.indexOf('\t') >= 0) {
+            return line.split("\t", -1);
+        }
+        return line.trim().split(" +");
+    }
+
+    /**
+     * Checks, whether command is known
+     *
+     * @param command Name of command
+     * @return true for info, list, print, save, stat and find
+     */
+    static boolean isCommand(String command) {
+        switch (command) {
+            case "info":
+            case "list":
+            case "print":
+            case "save":
+            case "stat":
+            case "find":
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Path argument of command, if it has one
+     *
+     * @param args Command and it's arguments
+     * @return Path, null if command doesn't have it
+     */
+    static String getPath(String[] args) {
+        if (args.length < 2 || args[0].equals("find") && FindQuery.isCriterion(args[1])) {
+            return null;
+        }
+        return args[1];
+    }
+
+    /**
+     * Executes command
+     *
+     * @param fat Opened volume
+     * @param args Command and it's arguments
+     * @param out Stream, to which result is written
+     * @throws IOException
+     * @throws IllegalArgumentException if command or it's arguments are wrong
+     */
+    static void execute(Fat fat, String[] args, OutputStream out) throws IOException {
+        execute(fat, args, null, out);
+    }
+
+    /**
+     * Executes command, taking entries of already resolved paths from map
+     *
+     * @param fat Opened volume
+     * @param args Command and it's arguments
+     * @param resolved Resolved entries by paths (null value means there is no
+     * such path), may be null
+     * @param out Stream, to which result is written
+     * @throws IOException
+     * @throws IllegalArgumentException if command or it's arguments are wrong
+     */
+    static void execute(Fat fat, String[] args, Map<String, DirectoryEntry> resolved, OutputStream out) throws IOException {
+        switch (args[0]) {
+            case "info":
+            case "list": {
+                String path = getPath(args);
+                find(fat, path == null ? "/" : path, resolved);
+                int depth = args.length > 2 ? Integer.parseInt(args[2].trim()) : -1;
+                int format = TreePrinter.FORMAT_TEXT;
+                if (args.length > 3) {
+                    format = TreePrinter.parseFormat(args[3].trim());
+                    if (format < 0) {
+                        throw new IllegalArgumentException("Unknown output format: " + args[3]);
+                    }
+                }
+                PrintStream printStream = new PrintStream(out, false);
+                fat.printInfo(path, depth, args[0].equals("info"), format, printStream);
+                printStream.flush();
+                break;
+            }
+            case "print": {
+                checkArgs(args, 2);
+                DirectoryEntry de = find(fat, args[1], resolved);
+                if (de.isDir()) {
+                    throw new IllegalArgumentException("Can't print directory");
+                }
+                long offset = args.length > 2 ? Long.parseLong(args[2].trim()) : 0;
+                long length = args.length > 3 ? Long.parseLong(args[3].trim()) : Long.MAX_VALUE;
+                try (EntryChannel channel = de.openChannel()) {
+                    channel.transferTo(offset, length, Channels.newChannel(out));
+                }
+                break;
+            }
+            case "save": {
+                checkArgs(args, 3);
+                DirectoryEntry de = find(fat, args[1], resolved);
+                File dest = new File(args[2]);
+                if (dest.isDirectory()) {
+                    dest = new File(dest, de.getName());
+                } else if (dest.getParentFile() != null && !dest.getParentFile().exists()) {
+                    throw new FileNotFoundException("Neither file nor it's parent directory exist");
+                } else if (dest.isFile() && de.isDir()) {
+                    throw new IllegalArgumentException("Can't write directory to file");
+                }
+                de.write(dest);
+                break;
+            }
+            case "stat": {
+                checkArgs(args, 2);
+                DirectoryEntry de = find(fat, args[1], resolved);
+                TreePrinter printer = new TreePrinter(out, TreePrinter.FORMAT_JSON);
+                printer.print(de, Fat.normalizePath(args[1]), 0, true);
+                printer.flush();
+                break;
+            }
+            case "find": {
+                String path = getPath(args);
+                int from = path == null ? 1 : 2;
+                if (path != null) {
+                    find(fat, path, resolved);
+                }
+                FindQuery query = FindQuery.parse(args, from, args.length);
+                PrintStream printStream = new PrintStream(out, false);
+                fat.printSearch(path, query, TreePrinter.FORMAT_TEXT, printStream);
+                printStream.flush();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+    }
+
+    private static void checkArgs(String[] args, int count) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("Not enough arguments for " + args[0]);
+        }
+    }
+
+    private static DirectoryEntry find(Fat fat, String path, Map<String, DirectoryEntry> resolved) throws IOException {
+        DirectoryEntry de = resolved != null && resolved.containsKey(path) ? resolved.get(path) : fat.find(path);
+        if (de == null) {
+            throw new FileNotFoundException("No such path: " + path);
+        }
+        return de;
+    }
+}
@@ -1,12 +1,15 @@
 package fatmaster;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Locale;
 import java.util.TreeMap;
 
 /**
@@ -19,21 +22,22 @@ import java.util.TreeMap;
 public class DirectoryEntry {
 
     /**
-     * Map, storing number properties of volume
+     * Raw 32 bytes of directory entry, null for root directory without volume
+     * label. Rarely used fields are decoded from it on demand.
      */
-    HashMap<String, Long> props;
-    /**
-     * Map, storing number properties of volume
-     */
-    HashMap<String, String> sprops;
+    private byte[] raw;
     /**
      * Value of byte, storing attributes of entry
      */
     private int attributes;
     /**
-     * Short name of directory entr
+     * Size of file in bytes (unsigned 32-bit value)
+     */
+    private int fileSize;
+    /**
+     * Date and time of last write: DIR_WrtDate << 16 | DIR_WrtTime
      */
-    public String shortName;
+    private int wrtDateTime;
     /**
      * Long name of drectory entry
      */
@@ -55,11 +59,21 @@ public class DirectoryEntry {
      * DirectoryEntry instances
      */
     TreeMap<String, DirectoryEntry> children;
-    /*
-     * Array of keys and array of sizes, used by readKeys()
+    /**
+     * Case-insensitive index of children: keys - case-folded long names and
+     * short names (both as stored and in "NAME.EXT" form), built on the first
+     * lookup by getChild()
      */
-    private static final String[] deKeys = {"DIR_Name", "DIR_Attr", "DIR_NTRes", "DIR_CrtTimeTenth", "DIR_CrtTime", "DIR_CrtDate", "DIR_LstAccDate", "DIR_FstClusHI", "DIR_WrtTime", "DIR_WrtDate", "DIR_FstClusLO", "DIR_FileSize"};
-    private static final int[] deKeys_sz = {11, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 4};
+    private volatile HashMap<String, DirectoryEntry> lookup;
+    /**
+     * Cluster chain of entry's data, null if it's not resolved yet
+     */
+    ClusterChain chain;
+    /**
+     * Offset of the children block in sidecar index, -1 if children should be
+     * read from the volume
+     */
+    long indexOffset = -1;
     /*
      * Bitmasks for different attributes of entry
      */
@@ -78,15 +92,18 @@ public class DirectoryEntry {
      * Short name of dotdot subdirectory
      */
     public static final String DOTDOT_SHORTNAME = "..         ";
+    /**
+     * Maximum size of buffer, used to read directory clusters
+     */
+    static final long READ_BUFFER_SIZE = 1 << 20;
 
     public DirectoryEntry(Fat parent) {
+        Stats.increment(Stats.ENTRIES);
         this.parent = parent;
         children = null;
         attributes = 0;
         dataClus = -1;
-        shortName = longName = null;
-        props = new HashMap<>();
-        sprops = new HashMap<>();
+        longName = null;
     }
 
     /**
@@ -107,6 +124,7 @@ public class DirectoryEntry {
      */
     public String getName() {
         if (longName == null || longName.isEmpty()) {
+            String shortName = getShortName();
             if (shortName == null || shortName.isEmpty()) {
                 return "No name";
             }
@@ -124,196 +142,229 @@ public class DirectoryEntry {
      * @throws IOException
      */
     public DirectoryEntry find(String path) throws IOException {
-        String[] parts = path.split("[/\\\\]+");
-        if (parts.length == 0) {
-            return this;
-        }
         DirectoryEntry entry = this;
-        for (int i = (parts[0].isEmpty() ? 1 : 0); i < parts.length; i++) {
-            entry.retrieveChildren();
-            DirectoryEntry _candidate = entry.children.get(parts[i]);
-            if (_candidate == null) {
-                return null;
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && path.charAt(end) != '/' && path.charAt(end) != '\\') {
+                end++;
+            }
+            if (end > start) {
+                entry = entry.getChild(path.substring(start, end));
+                if (entry == null) {
+                    return null;
+                }
             }
-            entry = _candidate;
+            start = end + 1;
         }
         return entry;
     }
 
+    /**
+     * Finds child by name. Exact name (as returned by getName()) is checked
+     * first, then name is compared case-insensitively with long and short
+     * names of children.
+     *
+     * @param name Long or short name of child
+     * @return Found child, null if there is no such child
+     * @throws IOException
+     */
+    public DirectoryEntry getChild(String name) throws IOException {
+        retrieveChildren();
+        DirectoryEntry child = children.get(name);
+        if (child != null) {
+            return child;
+        }
+        HashMap<String, DirectoryEntry> _lookup = lookup;
+        if (_lookup == null) {
+            _lookup = new HashMap<>(children.size() * 4);
+            for (DirectoryEntry entry : children.values()) {
+                if (entry.longName != null && !entry.longName.isEmpty()) {
+                    addLookupKey(_lookup, entry.longName, entry);
+                }
+                String shortName = entry.getShortName();
+                if (shortName != null) {
+                    addLookupKey(_lookup, shortName, entry);
+                    addLookupKey(_lookup, getDottedName(shortName), entry);
+                }
+            }
+            lookup = _lookup;
+        }
+        return _lookup.get(foldCase(name));
+    }
+
+    private static void addLookupKey(HashMap<String, DirectoryEntry> map, String name, DirectoryEntry entry) {
+        String key = foldCase(name);
+        if (!map.containsKey(key)) {
+            map.put(key, entry);
+        }
+    }
+
+    /**
+     * Case folding, used to compare names of entries
+     *
+     * @param name Name
+     * @return Name in upper case
+     */
+    static String foldCase(String name) {
+        return name.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Converts short name to "NAME.EXT" form (without padding spaces, dot is
+     * omitted if extension is empty)
+     *
+     * @param shortName Short name (11 characters, as stored in entry)
+     * @return Converted name
+     */
+    static String getDottedName(String shortName) {
+        int nameEnd = Math.min(8, shortName.length());
+        while (nameEnd > 0 && shortName.charAt(nameEnd - 1) == ' ') {
+            nameEnd--;
+        }
+        int extEnd = shortName.length();
+        while (extEnd > 8 && shortName.charAt(extEnd - 1) == ' ') {
+            extEnd--;
+        }
+        if (extEnd <= 8) {
+            return shortName.substring(0, nameEnd);
+        }
+        return shortName.substring(0, nameEnd) + "." + shortName.substring(8, extEnd);
+    }
+
     /**
      * Reads general entry data from byte[] (general entry of directory is not
      * long name entry)
      *
-     * @param data byte[] with entry's data in first 32 indexes
+     * @param data byte[] with entry's data
+     * @param offset Offset of the entry in data
      */
-    void readGeneralEntry(byte[] data) {
-        Fat.readKeysFromBuffer(data, deKeys, deKeys_sz, props, sprops);
-        shortName = sprops.get("DIR_Name");
-        attributes = props.get("DIR_Attr").intValue();
+    void readGeneralEntry(byte[] data, int offset) {
+        raw = Arrays.copyOfRange(data, offset, offset + DirectoryParser.ENTRY_SIZE);
+        attributes = raw[11] & 0xFF;
+        fileSize = (int) getRawValue(28, 4);
+        wrtDateTime = (int) ((getRawValue(24, 2) << 16) | getRawValue(22, 2));
         if (!isRootDir) {
-            dataClus = ((props.get("DIR_FstClusHI") << 16) | props.get("DIR_FstClusLO"));
+            dataClus = (getRawValue(20, 2) << 16) | getRawValue(26, 2);
         }
     }
 
     /**
-     * Reads long name entry data, adds bytes of name part in reversed order to
-     * list
+     * Reads unsigned number from raw entry bytes
      *
-     * @param data byte[] with entry's data in first 32 indexes
-     * @param list List, to which we should add bytes of name (if we will
-     * reverse it later, it will contain bytes of UTF-16BE encoded string)
+     * @param offset Offset of the field in entry
+     * @param length Size of the field in bytes
+     * @return Unsigned number, 0 if there are no raw bytes
      */
-    void readLNEntry(byte[] data, ArrayList<Byte> list) {
-        for (int i = 31; i >= 28; i -= 2) {
-            byte s1 = data[i - 1];
-            byte s2 = data[i];
-            if (s1 == -1 && s2 == -1) {
-                continue;
-            }
-            if (s1 == 0 && s2 == 0) {
-                continue;
-            }
-
-            list.add(s1);
-            list.add(s2);
+    private long getRawValue(int offset, int length) {
+        if (raw == null) {
+            return 0;
         }
-        for (int i = 25; i >= 14; i -= 2) {
-            byte s1 = data[i - 1];
-            byte s2 = data[i];
-            if (s1 == -1 && s2 == -1) {
-                continue;
-            }
-            if (s1 == 0 && s2 == 0) {
-                continue;
-            }
+        return Fat.getUnsignedIntFromBytes(raw, offset, length);
+    }
 
-            list.add(s1);
-            list.add(s2);
-        }
-        for (int i = 10; i >= 1; i -= 2) {
-            byte s1 = data[i - 1];
-            byte s2 = data[i];
-            if (s1 == -1 && s2 == -1) {
-                continue;
-            }
-            if (s1 == 0 && s2 == 0) {
-                continue;
-            }
+    /**
+     * Raw bytes of directory entry
+     *
+     * @return Array of 32 bytes, null for root directory without volume label
+     */
+    byte[] getRaw() {
+        return raw;
+    }
 
-            list.add(s1);
-            list.add(s2);
+    /**
+     * Short name of directory entry (DIR_Name, 11 characters)
+     *
+     * @return Short name, null if it's unknown (root directory without volume
+     * label)
+     */
+    public String getShortName() {
+        if (raw == null) {
+            return null;
         }
+        return new String(raw, 0, 11);
     }
 
     /**
-     * Reads root's child entry from FAT12/FAT16 volumes. Empty entries with
-     * 0xE5 in first byte are ignored, if it reaches 0x00 entry or the sectors
-     * of root directory are all passed, it puts -1 in lp.a. Otherwise it puts
-     * new offset to lp.a.
+     * Whether this is "." or ".." subdirectory
      *
-     * @param offset Offset in bytes from which we should start entry search
-     * @param lp LongPair to store offset
-     * @return true if new child was read, false otherwise (e.g. in cause of
-     * orphan entries)
-     * @throws IOException
+     * @return true if short name is DOT_SHORTNAME or DOTDOT_SHORTNAME
      */
-    public boolean readRootChild(long offset, LongPair lp) throws IOException {
-        ArrayList<Byte> list = new ArrayList<>();
-        //Going through long-name entries
-        boolean started = false;
-        while (true) {
-            if (offset + 32 > parent.firstDataSector * parent.bytsPerSec) {
+    public boolean isDotEntry() {
+        if (raw == null || raw[0] != '.') {
+            return false;
+        }
+        int i = (raw[1] == '.') ? 2 : 1;
+        for (; i < 11; i++) {
+            if (raw[i] != ' ') {
                 return false;
             }
-            parent.file.read(parent.readBuffer, 0, 32);
-            offset += 32;
-            if (!started) {
-                if (parent.readBuffer[0] == ((byte) 0xE5)) {
-                    continue;
-                } else if (parent.readBuffer[0] == 0) {
-                    lp.a = -1;
-                    return false;
-                } else {
-                    if (parent.readBuffer[0] == ((byte) 0x05)) {
-                        parent.readBuffer[0] = (byte) 0xE5;
-                    }
-                    started = true;
-                }
-            }
-            attributes = (int) Fat.getUnsignedIntFromBytes(parent.readBuffer, 11, 1);
-            if (!is(ATTR_LONG_NAME)) {
-                break;
-            }
-            readLNEntry(parent.readBuffer, list);
         }
-        lp.a = offset;
-        readEntry(parent.readBuffer, list);
         return true;
     }
 
     /**
-     * Reads child entry from volume. Empty entries with 0xE5 in first byte are
-     * ignored, if it reaches 0x00 entry or the sectors of root directory are
-     * all passed, it puts -1 in lp.a. Otherwise it puts new cluster number to
-     * lp.a, new offset to lp.b.
+     * DIR_NTRes field of entry
      *
-     * @param clus Cluster number
-     * @param offset Offset in bytes from the cluster beginning
-     * @param lp LongPair to store new cluster number and offset
-     * @return true if new child was read, false otherwise (e.g. in cause of
-     * orphan entries)
-     * @throws IOException
+     * @return Field value
      */
-    public boolean read(long clus, long offset, LongPair lp) throws IOException {
-        ArrayList<Byte> list = new ArrayList<>();
-        //Going through long-name entries
-        boolean started = false;
-        while (true) {
-            int read = parent.readBytes(clus, offset, parent.readBuffer, 0, 32, lp);
-            clus = lp.a;
-            offset = lp.b;
-            if (!started) {
-                if (parent.readBuffer[0] == ((byte) 0xE5)) {
-                    continue;
-                } else if (parent.readBuffer[0] == 0) {
-                    lp.a = -1;
-                    return false;
-                } else {
-                    if (parent.readBuffer[0] == ((byte) 0x05)) {
-                        parent.readBuffer[0] = (byte) 0xE5;
-                    }
-                    started = true;
-                }
-            }
-            attributes = (int) Fat.getUnsignedIntFromBytes(parent.readBuffer, 11, 1);
-            if (read < 32 || !is(ATTR_LONG_NAME)) {
-                break;
-            }
-            readLNEntry(parent.readBuffer, list);
-        }
-        if (clus < 0) {
-            return false;
-        }
-        readEntry(parent.readBuffer, list);
-        return true;
+    public int getNTRes() {
+        return (int) getRawValue(12, 1);
     }
 
     /**
-     * Initializes instance with given general entry's byte[] and reversed list
-     * of long name characters.
+     * Creation time, count of tenths of a second (DIR_CrtTimeTenth)
      *
-     * @param data byte[] with entry's data in first 32 indexes
-     * @param list List, to which we should add bytes of name (if we will
-     * reverse it later, it will contain bytes of UTF-16BE encoded string)
-     * @throws UnsupportedEncodingException
+     * @return Field value
      */
-    public void readEntry(byte[] generalEntry, ArrayList<Byte> list) throws UnsupportedEncodingException {
-        byte[] lnameBytes = new byte[list.size()];
-        for (int i = 0; i < lnameBytes.length; i++) {
-            lnameBytes[i] = list.get(lnameBytes.length - 1 - i);
-        }
-        longName = new String(lnameBytes, "utf-16");
-        readGeneralEntry(generalEntry);
+    public int getCrtTimeTenth() {
+        return (int) getRawValue(13, 1);
+    }
+
+    /**
+     * Creation time in FAT format (DIR_CrtTime)
+     *
+     * @return Field value
+     */
+    public int getCrtTime() {
+        return (int) getRawValue(14, 2);
+    }
+
+    /**
+     * Creation date in FAT format (DIR_CrtDate)
+     *
+     * @return Field value
+     */
+    public int getCrtDate() {
+        return (int) getRawValue(16, 2);
+    }
+
+    /**
+     * Last access date in FAT format (DIR_LstAccDate)
+     *
+     * @return Field value
+     */
+    public int getLstAccDate() {
+        return (int) getRawValue(18, 2);
+    }
+
+    /**
+     * Last write time in FAT format (DIR_WrtTime)
+     *
+     * @return Field value
+     */
+    public int getWrtTime() {
+        return wrtDateTime & 0xFFFF;
+    }
+
+    /**
+     * Last write date in FAT format (DIR_WrtDate)
+     *
+     * @return Field value
+     */
+    public int getWrtDate() {
+        return wrtDateTime >>> 16;
     }
 
     /**
@@ -323,10 +374,7 @@ public class DirectoryEntry {
      */
     public void readRoot() throws IOException {
         if (parent.type == 32) {
-            dataClus = parent.props.get("BPB_RootClus");
-            parent.moveToClus(dataClus);
-        } else {
-            parent.moveToSec(parent.fatSz * parent.numFATs + parent.rsvdSecCnt);
+            dataClus = parent.bootSector.getRootClus();
         }
     }
 
@@ -334,49 +382,65 @@ public class DirectoryEntry {
      * Initializes the children map. If instance if file, just executes such
      * code "children = new TreeMap<>();". Otherwise finds all the children of
      * the istance and adds their DirectoryEntry instances to children map.
+     * Synchronized, so concurrent requests can share the directory.
      *
      * @throws IOException
      */
-    public void retrieveChildren() throws IOException {
+    public synchronized void retrieveChildren() throws IOException {
         if (children == null) {
             children = new TreeMap<>();
             if (!isDir()) {
                 return;
             }
-            LongPair lp = new LongPair();
-            DirectoryEntry newChild = new DirectoryEntry(parent);
-            if (isRootDir && parent.type != 32) {
-                long offset = parent.fatSz * parent.numFATs + parent.rsvdSecCnt;
-                while (offset != -1) {
-                    if (newChild.readRootChild(offset, lp)) {
-                        if (newChild.is(ATTR_VOLUME_ID) && isRootDir) {
-                            retrieveAttributesFromEntry(newChild);
-                        } else {
-                            children.put(newChild.getName(), newChild);
-                        }
-                        newChild = new DirectoryEntry(parent);
-                    }
-                    offset = lp.a;
+            Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_TREE);
+            try {
+                if (indexOffset >= 0) {
+                    parent.index.readChildren(this);
+                    return;
                 }
-            } else {
-                long clus = dataClus;
-                long offset = 0;
-                while (clus != -1) {
-                    if (newChild.read(clus, offset, lp)) {
-                        if (newChild.is(ATTR_VOLUME_ID) && isRootDir) {
-                            retrieveAttributesFromEntry(newChild);
-                        } else {
-                            children.put(newChild.getName(), newChild);
+                DirectoryParser parser = new DirectoryParser(parent, this);
+                if (isRootDir && parent.type != 32) {
+                    long pos = (parent.fatSz * parent.numFATs + parent.rsvdSecCnt) * parent.bytsPerSec;
+                    byte[] buffer = new byte[parent.rootDirSectors * parent.bytsPerSec];
+                    parent.readAt(pos, buffer, 0, buffer.length);
+                    parser.parse(buffer, buffer.length);
+                } else {
+                    ClusterChain dirChain = getChain();
+                    long maxLength = Math.max(1, READ_BUFFER_SIZE / parent.bytsPerClus) * parent.bytsPerClus;
+                    byte[] buffer = new byte[(int) Math.min(maxLength, dirChain.getClusterCount() * parent.bytsPerClus)];
+                    boolean more = true;
+                    for (int i = 0; i < dirChain.size() && more; i++) {
+                        long pos = parent.getClusPos(dirChain.getStart(i));
+                        long extentSize = dirChain.getLength(i) * parent.bytsPerClus;
+                        while (extentSize > 0 && more) {
+                            int count = (int) Math.min(extentSize, (long) buffer.length);
+                            parent.readAt(pos, buffer, 0, count);
+                            more = parser.parse(buffer, count);
+                            pos += count;
+                            extentSize -= count;
                         }
-                        newChild = new DirectoryEntry(parent);
                     }
-                    clus = lp.a;
-                    offset = lp.b;
                 }
+            } finally {
+                Stats.end(phase);
             }
         }
     }
 
+    /**
+     * Adds child, parsed from the directory. Volume label entry of root
+     * directory is not added, it's attributes are copied to root instead.
+     *
+     * @param child Child entry
+     */
+    void addChild(DirectoryEntry child) {
+        if (child.is(ATTR_VOLUME_ID) && isRootDir) {
+            retrieveAttributesFromEntry(child);
+        } else {
+            children.put(child.getName(), child);
+        }
+    }
+
     /**
      * Copies information form given DirentoryEntry instance Doesn't copy
      * children, only properties, attributes, short/long names and number of
@@ -385,9 +449,9 @@ public class DirectoryEntry {
      * @param entry Entry with information to copy
      */
     private void retrieveAttributesFromEntry(DirectoryEntry entry) {
-        props = (HashMap<String, Long>) entry.props.clone();
-        sprops = (HashMap<String, String>) entry.sprops.clone();
-        shortName = entry.shortName;
+        raw = entry.raw;
+        fileSize = entry.fileSize;
+        wrtDateTime = entry.wrtDateTime;
         longName = entry.longName;
         attributes = entry.attributes;
         if (!isRootDir) {
@@ -395,30 +459,70 @@ public class DirectoryEntry {
         }
     }
 
+    /**
+     * Returns cluster chain of entry's data (resolves it on the first call).
+     * Chain of file is limited by the clusters, needed to store its size.
+     *
+     * @return Cluster chain
+     * @throws IOException
+     */
+    public ClusterChain getChain() throws IOException {
+        if (chain == null) {
+            long maxClusters = -1;
+            if (!isDir()) {
+                maxClusters = (getFileSize() + parent.bytsPerClus - 1) / parent.bytsPerClus;
+            }
+            chain = ClusterChain.resolve(parent, dataClus, maxClusters);
+        }
+        return chain;
+    }
+
+    /**
+     * Opens read-only channel with random access to data of file
+     *
+     * @return Channel, positioned at the beginning of file
+     * @throws IOException
+     */
+    public EntryChannel openChannel() throws IOException {
+        return new EntryChannel(parent, getChain(), getFileSize());
+    }
+
+    /**
+     * Opens input stream of file data (skip() doesn't read skipped bytes)
+     *
+     * @return Input stream
+     * @throws IOException
+     */
+    public InputStream openInputStream() throws IOException {
+        return openChannel().newInputStream();
+    }
+
+    /**
+     * Size of file in bytes
+     *
+     * @return DIR_FileSize field value, 0 for directories
+     */
     public long getFileSize() {
-        Long fsize = props.get("DIR_FileSize");
-        return fsize == null ? 0 : fsize;
+        return fileSize & 0xFFFFFFFFL;
     }
 
     /**
-     * Checks if instance fits given attribute mask
+     * Attributes of entry (DIR_Attr)
      *
-     * @param attr Attribute bitmask
-     * @return Whether instance fits bitmask or not
+     * @return Attribute bits
      */
-    public boolean is(int attr) {
-        return (attributes & attr) == attr;
+    public int getAttributes() {
+        return attributes;
     }
 
     /**
-     * Prints k*3 whitespace characters, used for directory tree formatting.
+     * Checks if instance fits given attribute mask
      *
-     * @param k
+     * @param attr Attribute bitmask
+     * @return Whether instance fits bitmask or not
      */
-    public void printIndent(int k) {
-        for (int i = 0; i < k; i++) {
-            System.out.print("   ");
-        }
+    public boolean is(int attr) {
+        return (attributes & attr) == attr;
     }
 
     /**
@@ -439,105 +543,99 @@ public class DirectoryEntry {
      * @throws IOException
      */
     public void printInfo(int childrenPrintDepth, boolean verbose) throws IOException {
-        printInfo(childrenPrintDepth, verbose, 0);
+        TreePrinter printer = new TreePrinter(System.out, TreePrinter.FORMAT_TEXT);
+        printer.print(this, getName(), childrenPrintDepth, verbose);
+        printer.flush();
     }
 
     /**
-     * Prints info about the instance to System.out
+     * Writes dir/file, to which the instance is refered to dest file.
      *
-     * @param childrenPrintDepth Depth of directory tree
-     * @param verbose Should we print full information, or only the names of
-     * entry and it's children
-     * @param indent Number of " " groups to prefix every output line
+     * @param dest File or dir on the disk. If null, we simply print the
+     * instance's file (or do nothing if it's a directory)
      * @throws IOException
      */
-    public void printInfo(int childrenPrintDepth, boolean verbose, int indent) throws IOException {
-        retrieveChildren();
-        if (verbose) {
-            printIndent(indent);
-            System.out.println("----------------------");
-            printIndent(indent);
-            System.out.println("Short name: " + shortName);
-            printIndent(indent);
-            System.out.println("Long name: " + longName);
-            printIndent(indent);
-            System.out.println("Read only: " + is(ATTR_READ_ONLY));
-            printIndent(indent);
-            System.out.println("Hidden: " + is(ATTR_HIDDEN));
-            printIndent(indent);
-            System.out.println("System: " + is(ATTR_SYSTEM));
-            printIndent(indent);
-            System.out.println("Directory: " + is(ATTR_DIRECTORY));
-            printIndent(indent);
-            System.out.println("Archive: " + is(ATTR_ARCHIVE));
-            printIndent(indent);
-            System.out.println("Size (KB = 2^10 Bytes): " + (getFileSize() / Math.pow(2, 10)));
-            printIndent(indent);
-            System.out.println("Size (KB = 10^3 Bytes): " + (getFileSize() / Math.pow(10, 3)));
+    public void write(File dest) throws IOException {
+        if (isDir()) {
+            dest.mkdir();
+            for (DirectoryEntry child : getRealChildren()) {
+                child.write(new File(dest.getPath() + File.separator + child.getName()));
+            }
         } else {
-            printIndent(indent);
-            System.out.println(getName());
+            writeData(dest);
         }
-        if (verbose && isDir()) {
-            printIndent(indent);
-            System.out.println("Children count: " + getRealChildrenCount());
+    }
+
+    /**
+     * Writes data of file, to which the instance is refered to dest file.
+     *
+     * @param dest File on the disk. If null, we simply print the file
+     * @return Count of bytes written
+     * @throws IOException
+     */
+    public long writeData(File dest) throws IOException {
+        FileChannel out;
+        if (dest == null) {
+            System.out.flush();
+            out = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            out = new FileOutputStream(dest).getChannel();
         }
-        if (isDir() && getRealChildrenCount() > 0 && (childrenPrintDepth > indent)) {
-            if (verbose) {
-                printIndent(indent);
-                System.out.println("Children:");
+        long fSize = getFileSize();
+        long written = 0;
+        ClusterChain fileChain = getChain();
+        if (parent.pipeline != null && fSize > parent.pipeline.getBufferSize()) {
+            written = parent.pipeline.transfer(fileChain, fSize, out);
+        } else {
+            for (int i = 0; i < fileChain.size() && written < fSize; i++) {
+                long extentSize = Math.min(fSize - written, fileChain.getLength(i) * parent.bytsPerClus);
+                parent.transferTo(parent.getClusPos(fileChain.getStart(i)), extentSize, out);
+                written += extentSize;
             }
-            Iterator<String> it = children.navigableKeySet().iterator();
-            do {
-                String key = it.next();
-                if (!children.get(key).shortName.equals(DOT_SHORTNAME)
-                        && !children.get(key).shortName.equals(DOTDOT_SHORTNAME)) {
-                    children.get(key).printInfo(childrenPrintDepth, verbose, indent + 1);
-                }
-            } while (it.hasNext());
         }
+        if (dest != null) {
+            out.close();
+        }
+        Stats.add(Stats.BYTES_WRITTEN, written);
+        return written;
     }
 
     /**
-     * Writes dir/file, to which the instance is refered to dest file.
+     * Returns children of the instance, not including "." and ".." subdirs
+     * (children are retrieved, if it wasn't done yet)
      *
-     * @param dest File or dir on the disk. If null, we simply print the
-     * instance's file (or do nothing if it's a directory)
+     * @return List of children in order of their names
      * @throws IOException
      */
-    public void write(File dest) throws IOException {
-        if (isDir()) {
-            dest.mkdir();
-            retrieveChildren();
-            Iterator<String> it = children.navigableKeySet().iterator();
-            do {
-                String key = it.next();
-                if (!children.get(key).shortName.equals(DOT_SHORTNAME)
-                        && !children.get(key).shortName.equals(DOTDOT_SHORTNAME)) {
-                    children.get(key).write(new File(dest.getPath() + File.separator + children.get(key).getName()));
-                }
-            } while (it.hasNext());
-        } else {
-            PrintStream out;
-            if (dest == null) {
-                out = System.out;
-            } else {
-                out = new PrintStream(dest);
-            }
-            byte[] buffer = new byte[(int) (parent.bytsPerClus)];
-            long clus = dataClus;
-            long fSize = props.get("DIR_FileSize");
-            while (fSize > 0) {
-                parent.moveToClus(clus);
-                parent.file.read(buffer, 0, (int) Math.min(fSize, (long) buffer.length));
-                out.write(buffer, 0, (int) Math.min(fSize, (long) buffer.length));
-                fSize -= buffer.length;
-                clus = parent.getNextClus(clus);
-            }
-            if (dest != null) {
-                out.close();
+    public ArrayList<DirectoryEntry> getRealChildren() throws IOException {
+        retrieveChildren();
+        ArrayList<DirectoryEntry> list = new ArrayList<>(children.size());
+        for (DirectoryEntry child : children.values()) {
+            if (!child.isDotEntry()) {
+                list.add(child);
             }
         }
+        return list;
+    }
+
+    /**
+     * Returns children of the instance, not including "." and ".." subdirs,
+     * without keeping them: if children aren't retrieved yet (and don't come
+     * from sidecar index), the directory is parsed and children are dropped
+     * after copying, so walking the tree with it doesn't hold the whole tree
+     *
+     * @return List of children in order of their names
+     * @throws IOException
+     */
+    synchronized ArrayList<DirectoryEntry> readRealChildren() throws IOException {
+        if (children != null || indexOffset >= 0 || !isDir()) {
+            return getRealChildren();
+        }
+        try {
+            return getRealChildren();
+        } finally {
+            children = null;
+        }
     }
 
     /**
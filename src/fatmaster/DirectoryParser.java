@@ -0,0 +1,143 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Parses directory entries from big buffers (whole clusters or the whole
+ * FAT12/FAT16 root directory region) in one pass. Parts of long name are
+ * decoded to reusable char array, so long name entries can be split between
+ * buffers.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class DirectoryParser {
+
+    /**
+     * Size of directory entry in bytes
+     */
+    static final int ENTRY_SIZE = 32;
+    /**
+     * Count of characters, stored in one long name entry
+     */
+    static final int LN_ENTRY_CHARS = 13;
+    /**
+     * Maximum ordinal of long name entry
+     */
+    static final int LN_MAX_ORD = 20;
+    /**
+     * Offsets of characters in long name entry
+     */
+    static final int[] LN_CHAR_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+    /**
+     * Last ordinal bit of long name entry
+     */
+    private static final int LAST_LONG_ENTRY = 0x40;
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * Directory, children of which are parsed
+     */
+    private final DirectoryEntry dir;
+    /**
+     * Characters of long name, collected so far
+     */
+    private final char[] name = new char[LN_MAX_ORD * LN_ENTRY_CHARS];
+    /**
+     * Count of meaningful characters in name (maximum filled index + 1)
+     */
+    private int nameLength;
+
+    DirectoryParser(Fat parent, DirectoryEntry dir) {
+        this.parent = parent;
+        this.dir = dir;
+    }
+
+    /**
+     * Parses entries from buffer and adds them to the directory. Deleted
+     * entries (0xE5 in first byte) are skipped.
+     *
+     * @param buffer Array with directory entries
+     * @param length Count of bytes in buffer (multiple of ENTRY_SIZE)
+     * @return false if the end of directory (0x00 entry) was reached, true
+     * otherwise
+     * @throws IOException
+     */
+    boolean parse(byte[] buffer, int length) throws IOException {
+        for (int offset = 0; offset + ENTRY_SIZE <= length; offset += ENTRY_SIZE) {
+            byte first = buffer[offset];
+            if (first == 0) {
+                Stats.add(Stats.DIR_SLOTS, offset / ENTRY_SIZE + 1);
+                return false;
+            }
+            if (first == (byte) 0xE5) {
+                nameLength = 0;
+                continue;
+            }
+            int attributes = buffer[offset + 11] & 0xFF;
+            if ((attributes & DirectoryEntry.ATTR_LONG_NAME) == DirectoryEntry.ATTR_LONG_NAME) {
+                readLNEntry(buffer, offset);
+                continue;
+            }
+            if (first == (byte) 0x05) {
+                buffer[offset] = (byte) 0xE5;
+            }
+            DirectoryEntry child = new DirectoryEntry(parent);
+            child.longName = getLongName();
+            child.readGeneralEntry(buffer, offset);
+            dir.addChild(child);
+            nameLength = 0;
+        }
+        Stats.add(Stats.DIR_SLOTS, length / ENTRY_SIZE);
+        return true;
+    }
+
+    /**
+     * Puts characters of long name entry to the name array
+     *
+     * @param buffer Array with directory entries
+     * @param offset Offset of long name entry in buffer
+     */
+    private void readLNEntry(byte[] buffer, int offset) {
+        int ord = buffer[offset] & 0xFF;
+        if ((ord & LAST_LONG_ENTRY) != 0) {
+            nameLength = 0;
+        }
+        ord &= ~LAST_LONG_ENTRY;
+        if (ord < 1 || ord > LN_MAX_ORD) {
+            return;
+        }
+        int start = (ord - 1) * LN_ENTRY_CHARS;
+        if (start > nameLength) {
+            Arrays.fill(name, nameLength, start, (char) 0);
+        }
+        for (int i = 0; i < LN_ENTRY_CHARS; i++) {
+            int k = offset + LN_CHAR_OFFSETS[i];
+            name[start + i] = (char) ((buffer[k] & 0xFF) | ((buffer[k + 1] & 0xFF) << 8));
+        }
+        nameLength = Math.max(nameLength, start + LN_ENTRY_CHARS);
+    }
+
+    /**
+     * Builds long name from collected characters (0x0000 and 0xFFFF
+     * characters, used as terminator and padding, are skipped)
+     *
+     * @return Long name, empty string if there were no long name entries
+     */
+    private String getLongName() {
+        int length = 0;
+        for (int i = 0; i < nameLength; i++) {
+            if (name[i] != 0 && name[i] != 0xFFFF) {
+                name[length++] = name[i];
+            }
+        }
+        if (length == 0) {
+            return "";
+        }
+        return new String(name, 0, length);
+    }
+}
@@ -0,0 +1,258 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only channel with random access to data of file inside the volume.
+ * Position is mapped to cluster with binary search over extents of the
+ * file's cluster chain (the extent of the previous read is checked first, so
+ * sequential reads don't search at all). One read call of the volume is made
+ * for every extent, touched by the request.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class EntryChannel implements SeekableByteChannel {
+
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * Cluster chain of file
+     */
+    private final ClusterChain chain;
+    /**
+     * Size of file in bytes (limited by the chain)
+     */
+    private final long size;
+    private long position = 0;
+    private boolean open = true;
+    /**
+     * Extent of the last read
+     */
+    private int extent = 0;
+
+    /**
+     * Creates channel
+     *
+     * @param parent Fat instance
+     * @param chain Cluster chain of file
+     * @param size Size of file in bytes
+     */
+    EntryChannel(Fat parent, ClusterChain chain, long size) {
+        this.parent = parent;
+        this.chain = chain;
+        this.size = Math.min(size, chain.getClusterCount() * parent.bytsPerClus);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Finds extent, which contains byte of file
+     *
+     * @param pos Position in file (less than size)
+     * @return Index of extent
+     */
+    private int locate(long pos) {
+        long index = pos / parent.bytsPerClus;
+        long first = chain.getFirstIndex(extent);
+        if (index < first || index >= first + chain.getLength(extent)) {
+            extent = chain.findExtent(index);
+        }
+        return extent;
+    }
+
+    /**
+     * Position of file byte in the volume
+     *
+     * @param i Index of extent, containing the byte
+     * @param pos Position in file (less than size)
+     * @return Position in the volume
+     */
+    private long getVolumePos(int i, long pos) {
+        return parent.getClusPos(chain.getStart(i), pos - chain.getFirstIndex(i) * parent.bytsPerClus);
+    }
+
+    /**
+     * Count of file bytes from pos to the end of its extent (or to the end of
+     * file)
+     */
+    private long getExtentRemaining(int i, long pos) {
+        long end = (chain.getFirstIndex(i) + chain.getLength(i)) * parent.bytsPerClus;
+        return Math.min(end, size) - pos;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            int i = locate(position);
+            int count = (int) Math.min(dst.remaining(), getExtentRemaining(i, position));
+            long pos = getVolumePos(i, position);
+            if (dst.hasArray()) {
+                parent.readAt(pos, dst.array(), dst.arrayOffset() + dst.position(), count);
+                dst.position(dst.position() + count);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + count);
+                try {
+                    parent.readAt(pos, dst);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+            position += count;
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Writes count bytes of file, starting from position, to target (zero
+     * copy where it's possible). Position of the channel isn't changed.
+     *
+     * @param position Position in file
+     * @param count Maximum count of bytes to write
+     * @param target Channel, to which we should write
+     * @return Count of written bytes
+     * @throws IOException
+     */
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ensureOpen();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException();
+        }
+        long written = 0;
+        count = Math.min(count, size - position);
+        while (written < count) {
+            int i = locate(position);
+            long len = Math.min(count - written, getExtentRemaining(i, position));
+            parent.transferTo(getVolumePos(i, position), len, target);
+            position += len;
+            written += len;
+        }
+        Stats.add(Stats.BYTES_WRITTEN, written);
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized EntryChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+
+    /**
+     * Creates input stream, reading the channel from its current position.
+     * skip() and mark()/reset() just move the position of the channel.
+     * Closing the stream closes the channel.
+     *
+     * @return Input stream
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            private long mark = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return EntryChannel.this.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                synchronized (EntryChannel.this) {
+                    long skipped = Math.max(0, Math.min(n, size - position()));
+                    position(position() + skipped);
+                    return skipped;
+                }
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position()));
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                synchronized (EntryChannel.this) {
+                    mark = EntryChannel.this.position;
+                }
+            }
+
+            @Override
+            public synchronized void reset() throws IOException {
+                position(mark);
+            }
+
+            @Override
+            public void close() {
+                EntryChannel.this.close();
+            }
+        };
+    }
+}
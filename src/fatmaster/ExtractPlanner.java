@@ -0,0 +1,287 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Extraction in disk order: the tree is walked first (directories are
+ * created, cluster chains of files are resolved), then extents of all files
+ * are sorted by their position in the volume and read in that order, so the
+ * volume is read in one pass from start to end instead of jumping between
+ * files in name order.
+ * <p>
+ * Files of one extent are written at once. Extents of fragmented files come
+ * out of order, so they are reassembled in memory (limited by memoryLimit)
+ * and the file is written when its last extent is read. When the limit is
+ * reached, buffered extents of the file, which holds the most memory, are
+ * written to their places in the destination; extents bigger than CHUNK_SIZE
+ * are always written to their places directly.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class ExtractPlanner {
+
+    /**
+     * Maximum size of extent, which is buffered for reassembly
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * Maximum count of bytes, buffered for reassembly
+     */
+    private final long memoryLimit;
+    /**
+     * Extents of all files, in order of collection (i.e. name order)
+     */
+    private final ArrayList<Piece> pieces = new ArrayList<>();
+    /**
+     * Files with buffered extents
+     */
+    private final ArrayList<Target> buffering = new ArrayList<>();
+    private long buffered = 0;
+    private long fileCount = 0;
+    private long byteCount = 0;
+
+    /**
+     * Creates planner
+     *
+     * @param parent Fat instance
+     * @param memoryLimit Maximum count of bytes, buffered for reassembly of
+     * fragmented files
+     */
+    ExtractPlanner(Fat parent, long memoryLimit) {
+        this.parent = parent;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Writes dir/file to the disk in disk order and prints summary (count of
+     * files and bytes, time, count of seeks and seek distance of disk order
+     * in comparison with name order) to System.out
+     *
+     * @param entry Dir/file to write
+     * @param dest Destination dir/file
+     * @throws IOException
+     */
+    void extract(DirectoryEntry entry, File dest) throws IOException {
+        long startTime = System.nanoTime();
+        collect(entry, dest);
+        long[] nameOrder = measure(pieces);
+        ArrayList<Piece> sorted = new ArrayList<>(pieces);
+        Collections.sort(sorted, new Comparator<Piece>() {
+            @Override
+            public int compare(Piece a, Piece b) {
+                return Long.compare(a.pos, b.pos);
+            }
+        });
+        long[] diskOrder = measure(sorted);
+        for (Piece piece : sorted) {
+            read(piece);
+        }
+        Stats.add(Stats.BYTES_WRITTEN, byteCount);
+        double time = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Files written: %d\n", fileCount);
+        System.out.printf("Bytes written: %d\n", byteCount);
+        System.out.printf("Time (s): %.3f\n", time);
+        System.out.printf("Extents: %d\n", pieces.size());
+        System.out.printf("Seeks (name order / disk order): %d / %d\n", nameOrder[0], diskOrder[0]);
+        System.out.printf("Seek distance, MB (name order / disk order): %.3f / %.3f\n", nameOrder[1] / 1e6, diskOrder[1] / 1e6);
+    }
+
+    /**
+     * Walks the tree: creates directories and empty files, adds extents of
+     * other files to the plan
+     */
+    private void collect(DirectoryEntry entry, File dest) throws IOException {
+        if (entry.isDir()) {
+            dest.mkdir();
+            for (DirectoryEntry child : entry.getRealChildren()) {
+                collect(child, new File(dest.getPath() + File.separator + child.getName()));
+            }
+            return;
+        }
+        long size = entry.getFileSize();
+        ClusterChain chain = size > 0 ? entry.getChain() : ClusterChain.EMPTY;
+        size = Math.min(size, chain.getClusterCount() * parent.bytsPerClus);
+        if (size == 0) {
+            new FileOutputStream(dest).close();
+            fileCount++;
+            return;
+        }
+        Target target = new Target(dest, size);
+        long offset = 0;
+        for (int i = 0; i < chain.size() && offset < size; i++) {
+            long length = Math.min(size - offset, chain.getLength(i) * parent.bytsPerClus);
+            pieces.add(new Piece(target, parent.getClusPos(chain.getStart(i)), offset, length));
+            target.pieceCount++;
+            offset += length;
+        }
+    }
+
+    /**
+     * Counts seeks and seek distance of reading extents in given order
+     *
+     * @return Count of seeks and sum of distances in bytes
+     */
+    private static long[] measure(ArrayList<Piece> order) {
+        long seeks = 0;
+        long distance = 0;
+        long lastEnd = -1;
+        for (Piece piece : order) {
+            if (piece.pos != lastEnd) {
+                seeks++;
+                if (lastEnd >= 0) {
+                    distance += Math.abs(piece.pos - lastEnd);
+                }
+            }
+            lastEnd = piece.pos + piece.length;
+        }
+        return new long[]{seeks, distance};
+    }
+
+    /**
+     * Reads extent and writes it (or buffers it for reassembly)
+     */
+    private void read(Piece piece) throws IOException {
+        Target target = piece.target;
+        if (target.pieceCount == 1) {
+            try (FileChannel out = new FileOutputStream(target.dest).getChannel()) {
+                parent.transferTo(piece.pos, piece.length, out);
+            }
+        } else if (piece.length > CHUNK_SIZE || piece.length > memoryLimit) {
+            try (RandomAccessFile out = target.open()) {
+                out.getChannel().position(piece.offset);
+                parent.transferTo(piece.pos, piece.length, out.getChannel());
+            }
+        } else {
+            while (buffered + piece.length > memoryLimit) {
+                spill();
+            }
+            piece.data = new byte[(int) piece.length];
+            parent.readAt(piece.pos, piece.data, 0, piece.data.length);
+            if (target.buffered.isEmpty()) {
+                buffering.add(target);
+            }
+            target.buffered.add(piece);
+            target.bufferedBytes += piece.length;
+            buffered += piece.length;
+        }
+        byteCount += piece.length;
+        if (++target.readCount == target.pieceCount) {
+            flush(target);
+            fileCount++;
+        }
+    }
+
+    /**
+     * Writes buffered extents of the file, which holds the most memory
+     */
+    private void spill() throws IOException {
+        Target largest = buffering.get(0);
+        for (Target target : buffering) {
+            if (target.bufferedBytes > largest.bufferedBytes) {
+                largest = target;
+            }
+        }
+        flush(largest);
+    }
+
+    /**
+     * Writes buffered extents of file to their places
+     */
+    private void flush(Target target) throws IOException {
+        if (target.buffered.isEmpty()) {
+            return;
+        }
+        try (RandomAccessFile out = target.open()) {
+            FileChannel channel = out.getChannel();
+            for (Piece piece : target.buffered) {
+                ByteBuffer buffer = ByteBuffer.wrap(piece.data);
+                long pos = piece.offset;
+                while (buffer.hasRemaining()) {
+                    pos += channel.write(buffer, pos);
+                }
+                piece.data = null;
+            }
+        }
+        buffered -= target.bufferedBytes;
+        target.buffered.clear();
+        target.bufferedBytes = 0;
+        buffering.remove(target);
+    }
+
+    /**
+     * Extent of file
+     */
+    private static class Piece {
+
+        final Target target;
+        /**
+         * Position of extent in the volume
+         */
+        final long pos;
+        /**
+         * Position of extent in file
+         */
+        final long offset;
+        final long length;
+        /**
+         * Buffered data, null if extent isn't buffered
+         */
+        byte[] data;
+
+        Piece(Target target, long pos, long offset, long length) {
+            this.target = target;
+            this.pos = pos;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Destination file of fragmented file
+     */
+    private static class Target {
+
+        final File dest;
+        final long size;
+        int pieceCount = 0;
+        int readCount = 0;
+        /**
+         * Whether destination was already created with the right size
+         */
+        boolean created = false;
+        final ArrayList<Piece> buffered = new ArrayList<>();
+        long bufferedBytes = 0;
+
+        Target(File dest, long size) {
+            this.dest = dest;
+            this.size = size;
+        }
+
+        /**
+         * Opens destination for writing to arbitrary positions (it's truncated
+         * to the size of file on the first call)
+         */
+        RandomAccessFile open() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(dest, "rw");
+            if (!created) {
+                file.setLength(size);
+                created = true;
+            }
+            return file;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task of parallel extraction: writes dir/file to the disk, subdirectories and
+ * files of directory are written by subtasks.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class ExtractTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Entry to write
+     */
+    private final DirectoryEntry entry;
+    /**
+     * Destination file/dir
+     */
+    private final File dest;
+    /**
+     * Count of files written by the task and all its subtasks
+     */
+    private final AtomicLong fileCount;
+    /**
+     * Count of bytes written by the task and all its subtasks
+     */
+    private final AtomicLong byteCount;
+
+    ExtractTask(DirectoryEntry entry, File dest, AtomicLong fileCount, AtomicLong byteCount) {
+        this.entry = entry;
+        this.dest = dest;
+        this.fileCount = fileCount;
+        this.byteCount = byteCount;
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            if (entry.isDir()) {
+                dest.mkdir();
+                ArrayList<ExtractTask> tasks = new ArrayList<>();
+                for (DirectoryEntry child : entry.getRealChildren()) {
+                    tasks.add(new ExtractTask(child, new File(dest.getPath() + File.separator + child.getName()), fileCount, byteCount));
+                }
+                invokeAll(tasks);
+            } else {
+                byteCount.addAndGet(entry.writeData(dest));
+                fileCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package fatmaster;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class deals with Fat volume.
@@ -26,6 +37,10 @@ public class Fat {
     private static final int[] keys32_sz = {4, 2, 2, 4, 2, 2, 12, 1, 1, 1, 4, 11, 8};
     private static final String[] keysFSInfo = {"FSI_LeadSig", "FSI_Reserved1", "FSI_StrucSig", "FSI_Free_Count", "FSI_Nxt_Free", "FSI_Reserved2", "FSI_TrailSig"};
     private static final int[] keysFSInfo_sz = {4, 480, 4, 4, 4, 12, 4};
+    /**
+     * Offset of FSI_Free_Count in FSInfo structure
+     */
+    static final int FSI_FREE_COUNT_OFFSET = 488;
     /**
      * Type of FAT volume: 12 - FAT12 16 - FAT16 32 - FAT32
      */
@@ -35,25 +50,27 @@ public class Fat {
      */
     long EOC;
     /**
-     * File with FAT volume
+     * FAT volume
+     */
+    Volume volume = null;
+    /**
+     * Boot sector of the volume
      */
-    RandomAccessFile file = null;
+    BootSector bootSector;
     /**
-     * Map, storing number properties of volume
+     * Map, storing number properties of volume (null until loadKeys() is
+     * called)
      */
     HashMap<String, Long> props;
     /**
-     * Map, storing number properties of volume
+     * Map, storing number properties of volume (null until loadKeys() is
+     * called)
      */
     HashMap<String, String> sprops;
     /**
-     * Root directory instance
+     * Root directory instance (null until getRoot() is called)
      */
     DirectoryEntry root;
-    /**
-     * Buffer, used for reading bytes from file
-     */
-    byte[] readBuffer;
     /**
      * Reserved sector count
      */
@@ -100,17 +117,78 @@ public class Fat {
      */
     long firstDataSector;
     /**
-     * Amount of free space on the volume in bytes
+     * Amount of free space on the volume in bytes (-1 until getFreeSpace()
+     * is called)
      */
     long freeSpace;
     /**
      * Amount of total space on the volume in bytes
      */
     long totSpace;
-
-    public Fat() {
-        readBuffer = new byte[1500];
-    }
+    /**
+     * In-memory FAT table, null if FAT caching is disabled (or until
+     * getFatTable() is called)
+     */
+    volatile FatTable fatTable;
+    /**
+     * Maximum amount of memory in bytes for FAT caching, -1 if caching is
+     * disabled
+     */
+    long fatCacheLimit = -1;
+    /**
+     * Memory budget of block cache in bytes (0 - no cache, -1 - default
+     * budget for volumes, which aren't mapped to memory)
+     */
+    long blockCacheLimit = -1;
+    /**
+     * Count of buffers of read pipeline (0 - files are written without
+     * pipeline)
+     */
+    int pipelineDepth = 0;
+    /**
+     * Size of one buffer of read pipeline in bytes
+     */
+    int pipelineBufferSize = 1 << 20;
+    /**
+     * Pipeline, used to write big files (null if it's not used)
+     */
+    ReadPipeline pipeline;
+    /**
+     * Memory limit of disk order extraction in bytes (-1 - files are
+     * extracted in name order)
+     */
+    long diskOrderMemoryLimit = -1;
+    /**
+     * Sidecar index file, null if index is not used
+     */
+    File indexFile;
+    /**
+     * Sidecar index, attached to the volume (null if it's not used or was
+     * rebuilt during getRoot())
+     */
+    TreeIndex index;
+    /**
+     * Maximum count of paths in pathCache
+     */
+    static final int PATH_CACHE_SIZE = 1 << 16;
+    /**
+     * Index of names of all entries, built by the second full search by names
+     * (null if it wasn't built yet)
+     */
+    private volatile NameIndex nameIndex;
+    /**
+     * Count of searches of the whole volume by names
+     */
+    private final AtomicInteger fullSearchCount = new AtomicInteger();
+    /**
+     * Cache of resolved paths, least recently used ones are dropped
+     */
+    private final LinkedHashMap<String, DirectoryEntry> pathCache = new LinkedHashMap<String, DirectoryEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirectoryEntry> eldest) {
+            return size() > PATH_CACHE_SIZE;
+        }
+    };
 
     /**
      * Initializes Fat class instance with FAT volume from _file
@@ -119,83 +197,354 @@ public class Fat {
      * @throws IOException
      */
     public void open(File _file) throws IOException {
-        if (file != null) {
-            file.close();
+        if (volume != null) {
+            close();
         }
-        file = new RandomAccessFile(_file, "r");
-        props = new HashMap<>();
-        sprops = new HashMap<>();
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OPEN);
+        try {
+            volume = Volume.open(_file);
+            byte[] data = new byte[BootSector.SIZE];
+            readAt(0, data, 0, data.length);
+            bootSector = new BootSector(data);
+            props = null;
+            sprops = null;
+
+            numFATs = bootSector.getNumFATs();
+            bytsPerSec = bootSector.getBytsPerSec();
+            secPerClus = bootSector.getSecPerClus();
+            bytsPerClus = bytsPerSec * secPerClus;
+            rsvdSecCnt = bootSector.getRsvdSecCnt();
+
+            rootDirSectors = ((bootSector.getRootEntCnt() * 32) + (bytsPerSec - 1)) / bytsPerSec;
+            if (bootSector.getFATSz16() != 0) {
+                fatSz = bootSector.getFATSz16();
+            } else {
+                fatSz = bootSector.getFATSz32();
+            }
+            if (bootSector.getTotSec16() != 0) {
+                totSec = bootSector.getTotSec16();
+            } else {
+                totSec = bootSector.getTotSec32();
+            }
+            dataSec = totSec - (rsvdSecCnt + (fatSz * numFATs) + rootDirSectors);
+            countOfClusters = dataSec / secPerClus;
 
-        readKeys(keys, keys_sz);
+            //Exploring the type of our FAT
+            if (countOfClusters < 4085) {
+                //Volume is FAT12
+                type = 12;
+                EOC = 0x0FF8;
 
-        numFATs = props.get("BPB_NumFATs").intValue();
-        bytsPerSec = props.get("BPB_BytsPerSec").intValue();
-        secPerClus = props.get("BPB_SecPerClus").intValue();
-        bytsPerClus = bytsPerSec * secPerClus;
-        rsvdSecCnt = props.get("BPB_RsvdSecCnt").intValue();
+            } else if (countOfClusters < 65525) {
+                //Volume is FAT16
+                type = 16;
+                EOC = 0xFFF8;
+            } else {
+                //Volume is FAT32
+                type = 32;
+                EOC = 0x0FFFFFF8L;
+            }
 
-        rootDirSectors = ((props.get("BPB_RootEntCnt").intValue() * 32) + (bytsPerSec - 1)) / bytsPerSec;
-        if (props.get("BPB_FATSz16") != 0) {
-            fatSz = props.get("BPB_FATSz16");
-        } else {
-            readKeys(keys32, keys32_sz);
-            fatSz = props.get("BPB_FATSz32");
+            firstDataSector = rsvdSecCnt + (numFATs * fatSz) + rootDirSectors;
+            long limit = blockCacheLimit < 0 && !(volume instanceof MappedVolume) ? CachedVolume.DEFAULT_LIMIT : blockCacheLimit;
+            if (limit > 0) {
+                long size = totSec * bytsPerSec;
+                if (volume.file.length() > 0) {
+                    size = Math.min(size, volume.file.length());
+                }
+                volume = new CachedVolume(volume, limit, size);
+            }
+            if (pipelineDepth > 0) {
+                pipeline = new ReadPipeline(this, pipelineDepth, pipelineBufferSize);
+            }
+            fatTable = null;
+            freeSpace = -1;
+            totSpace = countOfClusters * bytsPerClus;
+            root = null;
+            index = null;
+            nameIndex = null;
+            fullSearchCount.set(0);
+            synchronized (pathCache) {
+                pathCache.clear();
+            }
+        } finally {
+            Stats.end(phase);
         }
-        if (props.get("BPB_TotSec16") != 0) {
-            totSec = props.get("BPB_TotSec16");
-        } else {
-            totSec = props.get("BPB_TotSec32");
+    }
+
+    /**
+     * Finds entry by path (names are case-insensitive, short names can be
+     * used too). Resolved paths are cached.
+     *
+     * @param path Path from the root directory
+     * @return Found entry, null if there is no such entry
+     * @throws IOException
+     */
+    public DirectoryEntry find(String path) throws IOException {
+        DirectoryEntry entry;
+        synchronized (pathCache) {
+            entry = pathCache.get(path);
         }
-        dataSec = totSec - (rsvdSecCnt + (fatSz * numFATs) + rootDirSectors);
-        countOfClusters = dataSec / secPerClus;
+        if (entry == null) {
+            entry = getRoot().find(path);
+            if (entry != null) {
+                synchronized (pathCache) {
+                    pathCache.put(path, entry);
+                }
+            }
+        }
+        return entry;
+    }
 
-        //Exploring the type of our FAT
-        if (countOfClusters < 4085) {
-            //Volume is FAT12
-            type = 12;
-            EOC = 0x0FF8;
+    /**
+     * Finds entries below the path, matching the query. Subdirectories are
+     * searched in parallel, subtrees which can't contain matches are skipped.
+     * The second search of the whole volume by names builds index of names
+     * (so single searches don't pay for it), further searches by names are
+     * answered from it.
+     *
+     * @param path Path of start directory, null is assumed as '/' (root)
+     * @param query Criteria
+     * @return Matched entries by paths (in order of paths), null if there is
+     * no such path
+     * @throws IOException
+     */
+    public TreeMap<String, DirectoryEntry> search(String path, FindQuery query) throws IOException {
+        path = normalizePath(path == null ? "/" : path);
+        DirectoryEntry de = find(path);
+        if (de == null) {
+            return null;
+        }
+        String base = path.equals("/") ? "" : path;
+        if (query.isNameOnly() && de.isDir()) {
+            NameIndex _nameIndex = nameIndex;
+            if (_nameIndex == null && base.isEmpty() && fullSearchCount.incrementAndGet() > 1) {
+                _nameIndex = buildNameIndex();
+            }
+            if (_nameIndex != null) {
+                return _nameIndex.search(query, de, base);
+            }
+        }
+        ConcurrentHashMap<String, DirectoryEntry> results = new ConcurrentHashMap<>();
+        if (!de.isDir()) {
+            if (query.matchesEntry(de)) {
+                results.put(path, de);
+            }
+            return new TreeMap<>(results);
+        }
+        try {
+            ForkJoinPool.commonPool().invoke(new FindTask(de, base, "", 0, query, results));
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+        return new TreeMap<>(results);
+    }
 
-        } else if (countOfClusters < 65525) {
-            //Volume is FAT16
-            type = 16;
-            EOC = 0xFFF8;
-        } else {
-            //Volume is FAT32
-            type = 32;
-            EOC = 0x0FFFFFF8L;
+    private synchronized NameIndex buildNameIndex() throws IOException {
+        if (nameIndex == null) {
+            nameIndex = new NameIndex(getRoot());
         }
-        if (type == 32) {
-            if (props.get("BPB_FATSz32") == null) {
-                readKeys(keys32, keys32_sz);
+        return nameIndex;
+    }
+
+    /**
+     * Prints entries, found by search(), to out: paths (one per line) in
+     * text format, entries with information in JSON and TSV formats
+     *
+     * @param path Path of start directory, null is assumed as '/' (root)
+     * @param query Criteria
+     * @param format One of TreePrinter.FORMAT_* constants
+     * @param out Stream to print to
+     * @return Count of found entries, -1 if there is no such path
+     * @throws IOException
+     */
+    public int printSearch(String path, FindQuery query, int format, PrintStream out) throws IOException {
+        TreeMap<String, DirectoryEntry> results = search(path, query);
+        if (results == null) {
+            return -1;
+        }
+        if (format == TreePrinter.FORMAT_TEXT) {
+            for (String found : results.keySet()) {
+                out.println(found);
             }
         } else {
-            readKeys(keys12_16, keys12_16_sz);
+            TreePrinter printer = new TreePrinter(out, format);
+            for (Map.Entry<String, DirectoryEntry> found : results.entrySet()) {
+                printer.print(found.getValue(), found.getKey(), 0, true);
+            }
+            printer.flush();
         }
+        return results.size();
+    }
 
-        firstDataSector = rsvdSecCnt + (numFATs * fatSz) + rootDirSectors;
-        freeSpace = -1;
-        if (type == 32) {
-            moveToSec(props.get("BPB_FSInfo"));
-            readKeys(keysFSInfo, keysFSInfo_sz);
-            if (props.get("FSI_Free_Count") != 0xFFFFFFFFL) {
-                freeSpace = props.get("FSI_Free_Count") * bytsPerClus;
+    /**
+     * Returns root directory instance (creates it on the first call)
+     *
+     * @return Root directory
+     * @throws IOException
+     */
+    public synchronized DirectoryEntry getRoot() throws IOException {
+        if (root == null) {
+            root = new DirectoryEntry(this);
+            root.isRootDir = true;
+            root.readRoot();
+            if (indexFile != null) {
+                index = TreeIndex.attach(this, root, indexFile);
             }
         }
+        return root;
+    }
+
+    /**
+     * Returns FAT table, if FAT caching is enabled (loads it on the first
+     * call)
+     *
+     * @return FatTable instance, null if caching is disabled
+     * @throws IOException
+     */
+    FatTable getFatTable() throws IOException {
+        FatTable table = fatTable;
+        if (table == null && fatCacheLimit >= 0) {
+            synchronized (this) {
+                if (fatTable == null) {
+                    fatTable = FatTable.load(this, fatCacheLimit);
+                }
+                table = fatTable;
+            }
+        }
+        return table;
+    }
 
+    /**
+     * Returns amount of free space on the volume in bytes (counts it on the
+     * first call, if it isn't known from FSInfo)
+     *
+     * @return Free space in bytes
+     * @throws IOException
+     */
+    public synchronized long getFreeSpace() throws IOException {
         if (freeSpace == -1) {
-            moveToSec(rsvdSecCnt);
-            freeSpace = 0;
-            for (int i = 0; i < countOfClusters; i++) {
-                if (getNextClus(i) == 0) {
-                    freeSpace++;
+            Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_FREE_SPACE);
+            try {
+                long freeCount = -1;
+                if (type == 32) {
+                    freeCount = readNumber((long) bootSector.getFSInfo() * bytsPerSec + FSI_FREE_COUNT_OFFSET, 4);
+                    if (freeCount == 0xFFFFFFFFL) {
+                        freeCount = -1;
+                    }
+                }
+                FatTable table = getFatTable();
+                if (table != null && table.isResident()) {
+                    //Table is in memory anyway, so FSInfo value is checked
+                    long counted = table.countFree();
+                    if (freeCount != -1 && freeCount != counted) {
+                        System.err.printf("FSI_Free_Count (%d) doesn't match count of free clusters in FAT (%d)\n", freeCount, counted);
+                    }
+                    freeCount = counted;
+                } else if (freeCount == -1) {
+                    freeCount = FreeClusterCounter.count(this);
                 }
+                freeSpace = freeCount * bytsPerClus;
+            } finally {
+                Stats.end(phase);
             }
-            freeSpace *= bytsPerClus;
         }
-        totSpace = countOfClusters * bytsPerClus;
-        root = new DirectoryEntry(this);
-        root.isRootDir = true;
-        root.readRoot();
+        return freeSpace;
+    }
+
+    /**
+     * Fills props and sprops maps with values of boot sector (and FSInfo
+     * structure for FAT32), if it wasn't done yet
+     *
+     * @throws IOException
+     */
+    synchronized void loadKeys() throws IOException {
+        if (props != null) {
+            return;
+        }
+        props = new HashMap<>();
+        sprops = new HashMap<>();
+        byte[] ext = Arrays.copyOfRange(bootSector.data, BootSector.EXT_OFFSET, bootSector.data.length);
+        readKeysFromBuffer(bootSector.data, keys, keys_sz, props, sprops);
+        if (bootSector.getFATSz16() == 0 || type == 32) {
+            readKeysFromBuffer(ext, keys32, keys32_sz, props, sprops);
+        }
+        if (type == 32) {
+            readKeys((long) bootSector.getFSInfo() * bytsPerSec, keysFSInfo, keysFSInfo_sz);
+        } else {
+            readKeysFromBuffer(ext, keys12_16, keys12_16_sz, props, sprops);
+        }
+    }
+
+    /**
+     * Enables caching of FAT table in memory (should be called before open()).
+     * If the table doesn't fit into limit, its sectors are loaded on demand.
+     *
+     * @param limit Maximum amount of memory in bytes for FAT table, -1 to
+     * disable caching
+     */
+    public void setFatCacheLimit(long limit) {
+        fatCacheLimit = limit;
+    }
+
+    /**
+     * Sets memory budget of block cache, which serves small reads of the
+     * volume (should be called before open())
+     *
+     * @param limit Maximum amount of memory in bytes (0 disables the cache,
+     * -1 means default budget for volumes, which aren't mapped to memory)
+     */
+    public void setBlockCacheLimit(long limit) {
+        blockCacheLimit = limit;
+    }
+
+    /**
+     * Enables read pipeline for extraction of files: upcoming parts of file
+     * are read by separate thread, while already read ones are written (should
+     * be called before open())
+     *
+     * @param depth Count of buffers (0 disables the pipeline)
+     * @param bufferSize Size of one buffer in bytes
+     */
+    public void setReadPipeline(int depth, int bufferSize) {
+        pipelineDepth = depth;
+        pipelineBufferSize = bufferSize;
+    }
+
+    /**
+     * Enables extraction of directories in disk order: extents of all files
+     * are read in order of their position in the volume (see ExtractPlanner)
+     *
+     * @param memoryLimit Maximum count of bytes, buffered for reassembly of
+     * fragmented files (-1 disables disk order)
+     */
+    public void setDiskOrderExtraction(long memoryLimit) {
+        diskOrderMemoryLimit = memoryLimit;
+    }
+
+    /**
+     * Returns block cache of the volume
+     *
+     * @return CachedVolume instance, null if cache isn't used
+     */
+    public CachedVolume getBlockCache() {
+        return volume instanceof CachedVolume ? (CachedVolume) volume : null;
+    }
+
+    /**
+     * Enables sidecar index of directory tree (should be called before
+     * open()). Index is read from file if it matches the volume, otherwise
+     * the whole tree is read from the volume and written to file.
+     *
+     * @param file Index file, null to disable index
+     */
+    public void setIndexFile(File file) {
+        indexFile = file;
     }
 
     /**
@@ -204,115 +553,123 @@ public class Fat {
      * @throws IOException
      */
     public void close() throws IOException {
-        file.close();
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        volume.close();
     }
 
     /**
-     * Reads bytes from cluster (following the cluster chain, if the first
-     * cluster ends)
+     * Reads bytes from cluster chain
      *
-     * @param clus Cluster number
-     * @param offset Offset in bytes from beginning of the cluster
+     * @param chain Cluster chain
+     * @param offset Offset in bytes from beginning of the chain
      * @param bytes Array of bytes, to which we should write what we've read
      * @param bytes_offset Offset of the bytes array
      * @param count Count of the bytes, we should read
-     * @param nValues LongPair instance, to which we will put new cluster number
-     * and offset (they could change during reading)
      * @return Count of bytes we successfully read (may differ from requested
-     * count if it's impossible to read count bytes)
+     * count if chain ends earlier)
      * @throws IOException
      */
-    int readBytes(long clus, long offset, byte[] bytes, int bytes_offset, int count, LongPair nValues) throws IOException {
-        if (clus < 0) {
-            if (nValues != null) {
-                nValues.set(clus, offset);
-            }
+    int readBytes(ClusterChain chain, long offset, byte[] bytes, int bytes_offset, int count) throws IOException {
+        int read = 0;
+        int first = chain.findExtent(offset / bytsPerClus);
+        if (first < 0) {
             return 0;
         }
-        for (; offset >= bytsPerClus; offset -= bytsPerClus) {
-            clus = getNextClus(clus);
-            if (clus < 0) {
-                if (nValues != null) {
-                    nValues.set(-1, 0);
-                }
-                return 0;
-            }
-        }
-        int read = 0;
-        if (count > bytsPerClus - offset) {
-            moveToClus(clus, offset);
-            file.read(bytes, bytes_offset, bytsPerClus - (int) offset);
-            read += bytsPerClus - offset;
-            clus = getNextClus(clus);
+        offset -= chain.getFirstIndex(first) * bytsPerClus;
+        for (int i = first; i < chain.size() && count > 0; i++) {
+            long extentBytes = chain.getLength(i) * bytsPerClus;
+            int len = (int) Math.min(count, extentBytes - offset);
+            readAt(getClusPos(chain.getStart(i), offset), bytes, bytes_offset + read, len);
+            read += len;
+            count -= len;
             offset = 0;
         }
-        if (clus < 0) {
-            if (nValues != null) {
-                nValues.set(-1, 0);
-            }
-            return read;
-        }
-        while (count >= bytsPerClus) {
-            moveToClus(clus);
-            file.read(bytes, bytes_offset + read, bytsPerClus);
-            read += bytsPerClus;
-            count -= bytsPerClus;
-            clus = getNextClus(clus);
-            if (clus < 0) {
-                if (nValues != null) {
-                    nValues.set(-1, 0);
-                }
-                return read;
-            }
-        }
-        moveToClus(clus, offset);
-        file.read(bytes, bytes_offset + read, count);
-        if (nValues != null) {
-            nValues.set(clus, offset + count);
-        }
-        return read + count;
+        return read;
     }
 
     /**
-     * Moves file pointer to specified cluster
+     * Reads len bytes, starting from the pos position of the volume
      *
-     * @param clus Cluster number
+     * @param pos Position in bytes from the beginning of the volume
+     * @param bytes Array of bytes, to which we should write what we've read
+     * @param offset Offset of the bytes array
+     * @param len Count of bytes to read
      * @throws IOException
      */
-    void moveToClus(long clus) throws IOException {
-        moveToClus(clus, 0);
+    void readAt(long pos, byte[] bytes, int offset, int len) throws IOException {
+        volume.read(pos, bytes, offset, len);
     }
 
     /**
-     * Moves file pointer to specified cluster and offset
+     * Reads buffer.remaining() bytes, starting from the pos position of the
+     * volume, to buffer
+     *
+     * @param pos Position in bytes from the beginning of the volume
+     * @param buffer Buffer, to which we should write what we've read
+     * @throws IOException
+     */
+    void readAt(long pos, ByteBuffer buffer) throws IOException {
+        volume.read(pos, buffer);
+    }
+
+    /**
+     * Writes count bytes, starting from the pos position of the volume, to
+     * target channel (without copying them through the heap if possible)
+     *
+     * @param pos Position in bytes from the beginning of the volume
+     * @param count Count of bytes to write
+     * @param target Channel, to which we should write
+     * @throws IOException
+     */
+    void transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+        volume.transferTo(pos, count, target);
+    }
+
+    /**
+     * Returns position of specified cluster on the volume
+     *
+     * @param clus Cluster number
+     * @return Position in bytes from the beginning of the volume
+     */
+    long getClusPos(long clus) {
+        return getClusPos(clus, 0);
+    }
+
+    /**
+     * Returns position of specified cluster and offset on the volume
      *
      * @param clus Cluster number
      * @param offset Offset in bytes from beginning of the cluster
-     * @throws IOException
+     * @return Position in bytes from the beginning of the volume
      */
-    void moveToClus(long clus, long offset) throws IOException {
-        file.seek(getFirstSecOfClus(clus) * bytsPerSec + offset);
+    long getClusPos(long clus, long offset) {
+        return getFirstSecOfClus(clus) * bytsPerSec + offset;
     }
 
     /**
-     * Reads values, starting from current file pointer. It puts number values
+     * Reads values, starting from pos position of the volume. It puts number values
      * (less than 5 bytes) in props map and String values (more than 4 bytes) to
      * sprops map. keys[i] is treated as a key for the value, given by bytes
      * from summ(keys[0..i-1]) to summ(keys[0..i-1]) + keys_sz[i]
      *
+     * @param pos Position in bytes from the beginning of the volume
      * @param keys Array of keys
      * @param keys_sz Array of sizes
      * @param props Map of number values
      * @param sprops Map of string values
      * @throws IOException
      */
-    void readKeys(String[] keys, int[] keys_sz, HashMap<String, Long> props, HashMap<String, String> sprops) throws IOException {
+    void readKeys(long pos, String[] keys, int[] keys_sz, HashMap<String, Long> props, HashMap<String, String> sprops) throws IOException {
         int summ = 0;
         for (int i = 0; i < keys.length; i++) {
             summ += keys_sz[i];
         }
-        file.read(readBuffer, 0, summ);
-        readKeysFromBuffer(readBuffer, keys, keys_sz, props, sprops);
+        byte[] buffer = new byte[summ];
+        readAt(pos, buffer, 0, summ);
+        readKeysFromBuffer(buffer, keys, keys_sz, props, sprops);
     }
 
     /**
@@ -329,7 +686,24 @@ public class Fat {
      * @param sprops Map of string values
      */
     static void readKeysFromBuffer(byte[] buffer, String[] keys, int[] keys_sz, HashMap<String, Long> props, HashMap<String, String> sprops) {
-        int offset = 0;
+        readKeysFromBuffer(buffer, 0, keys, keys_sz, props, sprops);
+    }
+
+    /**
+     * Reads values from byte array, starting from the offset position. It
+     * puts number values (less than 5 bytes) in props map and String values
+     * (more than 4 bytes) to sprops map. keys[i] is treated as a key for the
+     * value, given by bytes from offset + summ(keys[0..i-1]) to offset +
+     * summ(keys[0..i-1]) + keys_sz[i]
+     *
+     * @param buffer Array of bytes, from which we should read
+     * @param offset Offset of the buffer
+     * @param keys Array of keys
+     * @param keys_sz Array of sizes
+     * @param props Map of number values
+     * @param sprops Map of string values
+     */
+    static void readKeysFromBuffer(byte[] buffer, int offset, String[] keys, int[] keys_sz, HashMap<String, Long> props, HashMap<String, String> sprops) {
         for (int i = 0; i < keys.length; i++) {
             if (keys_sz[i] < 5) {
                 props.put(keys[i], getUnsignedIntFromBytes(buffer, offset, keys_sz[i]));
@@ -381,61 +755,67 @@ public class Fat {
     }
 
     /**
-     * Reads size byte unsigned number, starting from the file pointer
+     * Reads size byte unsigned number, starting from the pos position of the
+     * volume
      *
+     * @param pos Position in bytes from the beginning of the volume
      * @param size Count of bytes, the number consists of.
      * @return Unsigned number
      * @throws IOException
      */
-    long readNumber(int size) throws IOException {
-        file.read(readBuffer, 0, size);
-        return getUnsignedIntFromBytes(readBuffer, 0, size);
+    long readNumber(long pos, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        readAt(pos, buffer, 0, size);
+        return getUnsignedIntFromBytes(buffer, 0, size);
     }
 
     /**
-     * Reads values, starting from current file pointer. It puts number values
-     * (less than 5 bytes) in this.props map and String values (more than 4
-     * bytes) to this.sprops map. keys[i] is treated as a key for the value,
-     * given by bytes from summ(keys[0..i-1]) to summ(keys[0..i-1]) + keys_sz[i]
+     * Reads values, starting from pos position of the volume. It puts number
+     * values (less than 5 bytes) in this.props map and String values (more
+     * than 4 bytes) to this.sprops map. keys[i] is treated as a key for the
+     * value, given by bytes from summ(keys[0..i-1]) to summ(keys[0..i-1]) +
+     * keys_sz[i]
      *
+     * @param pos Position in bytes from the beginning of the volume
      * @param keys Array of keys
      * @param keys_sz Array of sizes
      * @throws IOException
      */
-    void readKeys(String[] keys, int[] keys_sz) throws IOException {
-        readKeys(keys, keys_sz, props, sprops);
-    }
-
-    /**
-     * Moves file pointer to the specified sector and offset.
-     *
-     * @param sector Sector number
-     * @param offset Offset in bytes
-     * @throws IOException
-     */
-    void moveToSec(long sector, long offset) throws IOException {
-        file.seek(bytsPerSec * sector + offset);
+    void readKeys(long pos, String[] keys, int[] keys_sz) throws IOException {
+        readKeys(pos, keys, keys_sz, props, sprops);
     }
 
     /**
-     * Moves file pointer to the specified sector.
+     * Gets next cluster number from the cluster chain.
      *
-     * @param sector Sector number
+     * @param clus Cluster number
+     * @return Next cluster number if exists one in the cluster chain. -1
+     * otherwise
      * @throws IOException
      */
-    void moveToSec(long sector) throws IOException {
-        moveToSec(sector, 0);
+    long getNextClus(long clus) throws IOException {
+        Stats.increment(Stats.CLUSTERS_FOLLOWED);
+        long val;
+        FatTable table = getFatTable();
+        if (table != null) {
+            val = table.get(clus);
+        } else {
+            val = readFatEntry(clus);
+        }
+        if (val >= EOC) {
+            return -1;
+        }
+        return val;
     }
 
     /**
-     * Gets next cluster number from the cluster chain.
+     * Reads value of FAT entry from the volume.
      *
      * @param clus Cluster number
-     * @return Next cluster number if exists one in the cluster chain. -1
-     * otherwise
+     * @return Value of FAT entry
      * @throws IOException
      */
-    long getNextClus(long clus) throws IOException {
+    long readFatEntry(long clus) throws IOException {
         long fatOffset;
         if (type == 12) {
             fatOffset = clus + clus / 2;
@@ -444,28 +824,123 @@ public class Fat {
         } else {
             fatOffset = clus * 4;
         }
-        long fatSecNum = rsvdSecCnt + (fatOffset / bytsPerSec);
-        long fatEntOffset = fatOffset % bytsPerSec;
-        moveToSec(fatSecNum, fatEntOffset);
+        long pos = (long) rsvdSecCnt * bytsPerSec + fatOffset;
         long val;
         if (type == 12) {//12 bits
-            val = readNumber(2);
+            val = readNumber(pos, 2);
             if ((clus & 1) == 1) {
                 val >>= 4;
             } else {
                 val &= 0x0FFF;
             }
         } else if (type == 16) {//16 bits
-            val = readNumber(2);
+            val = readNumber(pos, 2);
         } else {//28 bits
-            val = readNumber(4) & 0x0FFFFFFFL;
-        }
-        if (val >= EOC) {
-            return -1;
+            val = readNumber(pos, 4) & 0x0FFFFFFFL;
         }
         return val;
     }
 
+    /**
+     * Prints range of file to System.out
+     *
+     * @param path Path to file
+     * @param offset Offset of range in bytes
+     * @param length Length of range in bytes (-1 means up to the end of file)
+     * @throws IOException
+     */
+    public void print(String path, long offset, long length) throws IOException {
+        DirectoryEntry de = find(path);
+        if (de == null) {
+            System.err.println("No such path");
+            return;
+        }
+        if (de.isDir()) {
+            System.err.println("Can't print directory");
+            return;
+        }
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+        try {
+            try (EntryChannel channel = de.openChannel()) {
+                if (length < 0) {
+                    length = Long.MAX_VALUE;
+                }
+                System.out.flush();
+                channel.transferTo(offset, length, new FileOutputStream(FileDescriptor.out).getChannel());
+            }
+            System.out.println();
+        } finally {
+            Stats.end(phase);
+        }
+    }
+
+    /**
+     * Prints manifest of files (path, size, first cluster and digest of every
+     * file) of dir/file to System.out, files are hashed right from the volume
+     * in parallel (see ManifestBuilder)
+     *
+     * @param path Path to file/dir, null is assumed as '/' (root)
+     * @param algorithm One of ManifestBuilder.ALGORITHM_* constants
+     * @param threads Count of hashing threads
+     * @param format TreePrinter.FORMAT_JSON for JSON lines, TSV otherwise
+     * @throws IOException
+     */
+    public void manifest(String path, int algorithm, int threads, int format) throws IOException {
+        if (path == null) {
+            path = "/";
+        }
+        DirectoryEntry de = find(path);
+        if (de == null) {
+            System.err.println("No such path");
+            return;
+        }
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+        try {
+            new ManifestBuilder(this, algorithm, threads).build(de, normalizePath(path), format, System.out);
+        } finally {
+            Stats.end(phase);
+        }
+    }
+
+    /**
+     * Prints fragmentation report of the volume (fragments of files, the
+     * worst fragmented files, free extents) to out, FAT is decoded in one
+     * pass (see FragmentationReport)
+     *
+     * @param worst Count of the worst fragmented files to print
+     * @param format One of TreePrinter.FORMAT_* constants (JSON and TSV list
+     * fragments of every entry, summary is printed to System.err then)
+     * @param out Stream to print to
+     * @throws IOException
+     */
+    public void printFragmentation(int worst, int format, PrintStream out) throws IOException {
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+        try {
+            new FragmentationReport(this).print(worst, format, out);
+        } finally {
+            Stats.end(phase);
+        }
+    }
+
+    /**
+     * Scans the whole volume for deleted entries and entries of orphan
+     * directory clusters and prints them with estimation of their recoverable
+     * part to out (see RecoveryScanner)
+     *
+     * @param threads Count of parsing threads
+     * @param format TreePrinter.FORMAT_JSON for JSON lines, TSV otherwise
+     * @param out Stream to print to
+     * @throws IOException
+     */
+    public void recover(int threads, int format, PrintStream out) throws IOException {
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_SCAN);
+        try {
+            new RecoveryScanner(this, threads).scan(format, out);
+        } finally {
+            Stats.end(phase);
+        }
+    }
+
     /**
      * Writes file/dir to the disk (or, if _dest == null prints file to
      * System.out)
@@ -476,17 +951,39 @@ public class Fat {
      * @throws IOException
      */
     public void write(String path, String _dest) throws IOException {
+        write(path, _dest, 0);
+    }
+
+    /**
+     * Writes file/dir to the disk (or, if _dest == null prints file to
+     * System.out)
+     *
+     * @param path Path to file/dir, null is assumed as '/' (root)
+     * @param _dest Destination file/dir. If null, prints file from path to
+     * System.out
+     * @param threads Count of threads to write dir/file with. If 0, it's
+     * written sequentially by the current thread, otherwise the tree is
+     * written in parallel and summary is printed to System.out (ignored, if
+     * disk order extraction is enabled)
+     * @throws IOException
+     */
+    public void write(String path, String _dest, int threads) throws IOException {
         if (path == null) {
             path = "/";
         }
-        DirectoryEntry de = root.find(path);
+        DirectoryEntry de = find(path);
         if (de == null) {
             System.err.println("No such path");
             return;
         }
         if (!de.isDir() && _dest == null) {
-            de.write(null);
-            System.out.println();
+            Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+            try {
+                de.write(null);
+                System.out.println();
+            } finally {
+                Stats.end(phase);
+            }
             return;
         }
         File _file = new File(_dest);
@@ -503,7 +1000,49 @@ public class Fat {
         } else {
             dest = new File(_file.getPath() + File.separator + de.getName());
         }
-        de.write(dest);
+        AtomicLong fileCount = new AtomicLong();
+        AtomicLong byteCount = new AtomicLong();
+        long startTime = System.nanoTime();
+        Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+        try {
+            if (diskOrderMemoryLimit >= 0) {
+                new ExtractPlanner(this, diskOrderMemoryLimit).extract(de, dest);
+                return;
+            }
+            if (threads <= 0) {
+                de.write(dest);
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new ExtractTask(de, dest, fileCount, byteCount));
+            } catch (RuntimeException e) {
+                for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                }
+                throw e;
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            Stats.end(phase);
+        }
+        double time = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Files written: %d\n", fileCount.get());
+        System.out.printf("Bytes written: %d\n", byteCount.get());
+        System.out.printf("Time (s): %.3f\n", time);
+    }
+
+    /**
+     * Checks whether cluster number points to the data region
+     *
+     * @param clus Cluster number
+     * @return true if clus is a number of data cluster
+     */
+    boolean isValidClus(long clus) {
+        return clus >= 2 && clus < countOfClusters + 2;
     }
 
     /**
@@ -540,38 +1079,124 @@ public class Fat {
      * @throws IOException
      */
     public void printInfo(String path, int depth, boolean verbose) throws IOException {
+        printInfo(path, depth, verbose, TreePrinter.FORMAT_TEXT);
+    }
+
+    /**
+     * Prints information about the path to System.out in given format. Volume
+     * information (when path == null and verbose == true) is printed only in
+     * human readable format.
+     *
+     * @param path Path, information about which we should print
+     * @param depth Depth of file/directory tree to print (-1 means print it
+     * full, 0 - only the file/dir from path)
+     * @param verbose Whether to print information, or just names of files/dirs
+     * @param format One of TreePrinter.FORMAT_* constants
+     * @throws IOException
+     */
+    public void printInfo(String path, int depth, boolean verbose, int format) throws IOException {
+        printInfo(path, depth, verbose, format, System.out);
+    }
+
+    /**
+     * Prints information about the path to out in given format. Volume
+     * information (when path == null and verbose == true) is printed only in
+     * human readable format.
+     *
+     * @param path Path, information about which we should print
+     * @param depth Depth of file/directory tree to print (-1 means print it
+     * full, 0 - only the file/dir from path)
+     * @param verbose Whether to print information, or just names of files/dirs
+     * @param format One of TreePrinter.FORMAT_* constants
+     * @param out Stream to print to
+     * @throws IOException
+     */
+    public void printInfo(String path, int depth, boolean verbose, int format, PrintStream out) throws IOException {
         if (depth < 0) {
             depth = Integer.MAX_VALUE;
         }
         if (path == null) {
-            if (verbose) {
-                System.out.printf("Type of FAT: FAT%d\n", type);
-                System.out.println("======= Space information =======");
-                System.out.println("Free space (MB = 10^6 Bytes): " + ((long) (freeSpace / Math.pow(10, 6))));
-                System.out.println("Free space (MB = 2^20 Bytes): " + ((long) (freeSpace >> 20)));
-                System.out.println("Total space (MB = 10^6 Bytes): " + ((long) (totSpace / Math.pow(10, 6))));
-                System.out.println("Total space (MB = 2^20 Bytes): " + ((long) (totSpace >> 20)));
+            if (verbose && format == TreePrinter.FORMAT_TEXT) {
+                out.printf("Type of FAT: FAT%d\n", type);
+                out.println("======= Space information =======");
+                out.println("Free space (MB = 10^6 Bytes): " + ((long) (getFreeSpace() / Math.pow(10, 6))));
+                out.println("Free space (MB = 2^20 Bytes): " + ((long) (getFreeSpace() >> 20)));
+                out.println("Total space (MB = 10^6 Bytes): " + ((long) (totSpace / Math.pow(10, 6))));
+                out.println("Total space (MB = 2^20 Bytes): " + ((long) (totSpace >> 20)));
                 //Constraints
-                System.out.println("======= Constraints =======");
+                out.println("======= Constraints =======");
+                loadKeys();
                 Object[] map_keys = props.keySet().toArray();
                 Arrays.sort(map_keys);
                 for (int i = 0; i < map_keys.length; i++) {
-                    System.out.printf("%s: %d\n", (String) map_keys[i], props.get((String) map_keys[i]));
+                    out.printf("%s: %d\n", (String) map_keys[i], props.get((String) map_keys[i]));
                 }
                 map_keys = sprops.keySet().toArray();
                 Arrays.sort(map_keys);
                 for (int i = 0; i < map_keys.length; i++) {
-                    System.out.printf("%s: %s\n", (String) map_keys[i], sprops.get((String) map_keys[i]));
+                    out.printf("%s: %s\n", (String) map_keys[i], sprops.get((String) map_keys[i]));
                 }
-                System.out.println("======= Root Directory =======");
+                out.println("======= Root Directory =======");
             }
             path = "/";
         }
-        DirectoryEntry de = root.find(path);
+        DirectoryEntry de = find(path);
         if (de == null) {
             System.err.println("No such path");
         } else {
-            de.printInfo(depth, verbose);
+            out.flush();
+            Stats.PhaseEvent phase = Stats.begin(Stats.PHASE_OUTPUT);
+            try {
+                TreePrinter printer = new TreePrinter(out, format);
+                printer.print(de, format == TreePrinter.FORMAT_TEXT ? de.getName() : normalizePath(path), depth, verbose);
+                printer.flush();
+            } finally {
+                Stats.end(phase);
+            }
+        }
+    }
+
+    /**
+     * Converts path to "/dir/name" form (separators are collapsed, "/" for the
+     * root directory)
+     *
+     * @param path Path from the root directory
+     * @return Normalized path
+     */
+    static String normalizePath(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 1);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' || c == '\\') {
+                continue;
+            }
+            if (i == 0 || path.charAt(i - 1) == '/' || path.charAt(i - 1) == '\\') {
+                sb.append('/');
+            }
+            sb.append(c);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    /**
+     * Parses size with optional K, M or G suffix
+     *
+     * @param value Value like "512", "64K", "10G"
+     * @return Size in bytes
+     */
+    static long parseSize(String value) {
+        value = value.trim().toUpperCase();
+        int shift = 0;
+        if (value.endsWith("K")) {
+            shift = 10;
+        } else if (value.endsWith("M")) {
+            shift = 20;
+        } else if (value.endsWith("G")) {
+            shift = 30;
+        }
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
         }
+        return Long.parseLong(value) << shift;
     }
-}
\ No newline at end of file
+}
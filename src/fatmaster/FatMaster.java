@@ -16,15 +16,40 @@ public class FatMaster {
     static final int LIST = (1 << 2);
     static final int PRINT = (1 << 3);
     static final int SAVE = (1);
+    static final int MANIFEST = (1 << 4);
+    static final int FIND = (1 << 5);
+    static final int RECOVER = (1 << 6);
+    static final int FRAGMENTATION = (1 << 7);
     int runningMode = 0;
 
     private boolean isNeeded(int mode_mask) {
         return (runningMode & mode_mask) == mode_mask;
     }
     String fileName = null, info_path = null, list_path = null, save_from = null, save_to = null, print_path = null;
+    long print_offset = 0;
+    long print_length = -1;
     int list_depth = -1;
     int info_depth = -1;
-    final String[] reservedArgs = {"-f", "-i", "-p", "-l", "-ld", "-id", "-s", "-h", "--help"};
+    long fat_cache = -1;
+    long block_cache = -1;
+    int pipeline_depth = 0;
+    int pipeline_buffer = 1 << 20;
+    int save_threads = 0;
+    long disk_order_memory = -1;
+    String manifest_path = null;
+    int manifest_algorithm = ManifestBuilder.ALGORITHM_SHA256;
+    int frag_worst = 10;
+    String find_path = null;
+    FindQuery find_query = null;
+    boolean use_index = false;
+    String index_file = null;
+    int output_format = TreePrinter.FORMAT_TEXT;
+    boolean print_stats = false;
+    boolean serve = false;
+    int serve_threads = Runtime.getRuntime().availableProcessors();
+    boolean log_latency = false;
+    String batch_file = null;
+    final String[] reservedArgs = {"-f", "-i", "-p", "-l", "-ld", "-id", "-s", "-m", "-ma", "-find", "-recover", "-frag", "-c", "-bc", "-j", "-so", "-pd", "-pb", "-x", "-o", "-stats", "-serve", "-sl", "-b", "-h", "--help"};
 
     private boolean isReservedArg(String s) {
         for (int i = 0; i < reservedArgs.length; i++) {
@@ -35,6 +60,10 @@ public class FatMaster {
         return false;
     }
 
+    private static boolean isNumber(String s) {
+        return s.trim().matches("\\d+");
+    }
+
     private FatMaster(String[] args) throws IOException {
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -47,6 +76,61 @@ public class FatMaster {
                 case "-id":
                     info_depth = Integer.parseInt(args[++i].trim());
                     break;
+                case "-c":
+                    fat_cache = Long.parseLong(args[++i].trim()) << 20;
+                    break;
+                case "-bc":
+                    block_cache = Long.parseLong(args[++i].trim()) << 20;
+                    break;
+                case "-j":
+                    save_threads = Integer.parseInt(args[++i].trim());
+                    break;
+                case "-so":
+                    disk_order_memory = 64 << 20;
+                    if (i + 1 < args.length && isNumber(args[i + 1])) {
+                        disk_order_memory = Long.parseLong(args[++i].trim()) << 20;
+                    }
+                    break;
+                case "-pd":
+                    pipeline_depth = Integer.parseInt(args[++i].trim());
+                    break;
+                case "-pb": {
+                    int kb = Integer.parseInt(args[++i].trim());
+                    if (kb <= 0 || kb > Integer.MAX_VALUE >> 10) {
+                        System.err.println("Wrong size of pipeline buffer: " + args[i]);
+                        return;
+                    }
+                    pipeline_buffer = kb << 10;
+                    break;
+                }
+                case "-x":
+                    use_index = true;
+                    if (i + 1 < args.length && !isReservedArg(args[i + 1])) {
+                        index_file = args[++i];
+                    }
+                    break;
+                case "-o":
+                    output_format = TreePrinter.parseFormat(args[++i].trim());
+                    if (output_format < 0) {
+                        System.err.println("Unknown output format: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-stats":
+                    print_stats = true;
+                    break;
+                case "-serve":
+                    serve = true;
+                    if (i + 1 < args.length && isNumber(args[i + 1])) {
+                        serve_threads = Integer.parseInt(args[++i].trim());
+                    }
+                    break;
+                case "-sl":
+                    log_latency = true;
+                    break;
+                case "-b":
+                    batch_file = args[++i];
+                    break;
                 case "-i":
                     runningMode |= INFO;
                     if (i + 1 < args.length && !isReservedArg(args[i + 1])) {
@@ -56,6 +140,12 @@ public class FatMaster {
                 case "-p":
                     runningMode |= PRINT;
                     print_path = args[++i];
+                    if (i + 1 < args.length && isNumber(args[i + 1])) {
+                        print_offset = Long.parseLong(args[++i].trim());
+                        if (i + 1 < args.length && isNumber(args[i + 1])) {
+                            print_length = Long.parseLong(args[++i].trim());
+                        }
+                    }
                     break;
                 case "-l":
                     runningMode |= LIST;
@@ -74,6 +164,46 @@ public class FatMaster {
                         }
                     }
                     break;
+                case "-m":
+                    runningMode |= MANIFEST;
+                    if (i + 1 < args.length && !isReservedArg(args[i + 1])) {
+                        manifest_path = args[++i];
+                    }
+                    break;
+                case "-ma":
+                    manifest_algorithm = ManifestBuilder.parseAlgorithm(args[++i].trim());
+                    if (manifest_algorithm < 0) {
+                        System.err.println("Unknown digest algorithm: " + args[i]);
+                        return;
+                    }
+                    break;
+                case "-find": {
+                    runningMode |= FIND;
+                    if (i + 1 < args.length && !isReservedArg(args[i + 1]) && !FindQuery.isCriterion(args[i + 1])) {
+                        find_path = args[++i];
+                    }
+                    int from = i + 1;
+                    //Trailing criterion without value is passed too, so parse() reports it
+                    while (i + 1 < args.length && FindQuery.isCriterion(args[i + 1])) {
+                        i = Math.min(i + 2, args.length - 1);
+                    }
+                    try {
+                        find_query = FindQuery.parse(args, from, i + 1);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        return;
+                    }
+                    break;
+                }
+                case "-recover":
+                    runningMode |= RECOVER;
+                    break;
+                case "-frag":
+                    runningMode |= FRAGMENTATION;
+                    if (i + 1 < args.length && isNumber(args[i + 1])) {
+                        frag_worst = Integer.parseInt(args[++i].trim());
+                    }
+                    break;
                 case "-h":
                 case "--help":
                     System.out.println("FAT Master - very simple utilite to read FAT volumes\n"
@@ -86,31 +216,110 @@ public class FatMaster {
                             + "-id NUM    -    specify the depth of directory tree, printed by \"-i [PATH]\"\n"
                             + "-l [PATH]  -    print the directory tree of PATH, no information about files, only names\n"
                             + "-ld NUM    -    specify the depth of directory tree, printed by \"-l [PATH]\"\n"
-                            + "-p PATH    -    prints file, specified by PATH\n"
+                            + "-p PATH [OFFSET [LENGTH]] - prints file, specified by PATH (or LENGTH bytes of it, starting from OFFSET)\n"
                             + "-s [PATH] DIR/FILE - saves directory/file, specified by path to directory/file from DIR/FILE\n"
+                            + "-m [PATH]  -    print manifest of files of PATH (or of the whole volume): path, size, first cluster, digest and truncated flag (chain is shorter than size) of every file, as TSV or JSON lines (\"-o json\"), files are hashed right from the volume by \"-j\" threads (count of processors by default)\n"
+                            + "-ma ALG    -    digest algorithm of \"-m\": sha256 (default), crc32c or xxhash64\n"
+                            + "-find [PATH] [CRITERIA] - print paths of entries below PATH (or in the whole volume), matching all criteria: -name GLOB (on long and short names, on path if GLOB contains '/'), -regex REGEX, -type f|d, -size MIN-MAX (K, M, G suffixes, either bound may be omitted), -attr MASK (letters r, h, s, d, a or number), -mdate FROM..TO, -cdate FROM..TO (YYYY-MM-DD), -maxdepth NUM; \"-o json\" and \"-o tsv\" print information about entries\n"
+                            + "-recover   -    scan the whole volume in one sequential pass for deleted entries (with their long names) and entries of orphan directory clusters, print them with status and recoverable bytes, estimated from the FAT, as TSV or JSON lines (\"-o json\"), stripes are parsed by \"-j\" threads (count of processors by default)\n"
+                            + "-frag [NUM] -   print fragmentation report: fragments of files and directories, NUM (10 by default) worst fragmented files, histogram of free extents and the largest free run, FAT is decoded in one pass; \"-o json\" and \"-o tsv\" list fragments of every entry (report is printed to stderr then)\n"
+                            + "-c MB      -    cache FAT table in memory, using no more than MB megabytes (if the table is bigger, its sectors are cached on demand)\n"
+                            + "-bc MB     -    cache blocks of the volume in memory, using no more than MB megabytes (0 disables the cache, by default it's used only for volumes, which can't be mapped to memory), cache statistics is printed to stderr\n"
+                            + "-j NUM     -    save with NUM parallel threads (\"-s\"), summary is printed after saving\n"
+                            + "-so [MB]   -    save (\"-s\") in disk order: files are read in order of their position on the volume, fragmented files are reassembled in memory, using no more than MB megabytes (64 by default), summary with seek distance of disk and name orders is printed after saving\n"
+                            + "-pd NUM    -    write files (\"-s\", \"-p\") through read pipeline with NUM buffers: reading of next buffers overlaps with writing of already read ones\n"
+                            + "-pb KB     -    size of one buffer of read pipeline (1024 KB by default)\n"
+                            + "-x [FILE]  -    use sidecar index of directory tree, stored in FILE (FILE.fmidx by default), it's rebuilt if it doesn't match the volume\n"
+                            + "-o FORMAT  -    output format of \"-i\", \"-l\", \"-find\" and \"-m\": text (default), json (JSON lines) or tsv, json and tsv contain path, attributes, size, first cluster and timestamps of every entry\n"
+                            + "-serve [NUM] -  daemon mode: serve requests \"ID COMMAND ARGS...\" (open, close, info, list, print, save, stat, metrics, quit) from stdin with NUM worker threads (count of processors by default), volume of \"-f\" is named \"default\", see readme for the protocol\n"
+                            + "-sl        -    log latency of every request of daemon mode to stderr\n"
+                            + "-b FILE    -    batch mode: execute commands from FILE (\"-\" means stdin), one per line: info/list [PATH [DEPTH [FORMAT]]], print PATH [OFFSET [LENGTH]], save PATH DEST, stat PATH; output of every command is preceded by line \"==> N: COMMAND\", errors are printed to stderr\n"
+                            + "-stats     -    print counters of I/O and hot paths (seeks, reads, followed clusters, parsed directory slots, allocated entries, written bytes, seek distance) and time of phases (open, free space, tree build, output, volume scan) to stderr, phases are also recorded as JFR events \"fatmaster.Phase\"\n"
                             + "-h/--help  -    print this help");
                     return;
 //                    break;
             }
         }
+        Server server = null;
+        if (serve) {
+            server = new Server(serve_threads, fat_cache, block_cache, pipeline_depth, pipeline_buffer, use_index, log_latency);
+        }
         if (fileName != null) {
             fat = new Fat();
+            fat.setFatCacheLimit(fat_cache);
+            fat.setBlockCacheLimit(block_cache);
+            fat.setReadPipeline(pipeline_depth, pipeline_buffer);
+            fat.setDiskOrderExtraction(disk_order_memory);
+            if (use_index) {
+                fat.setIndexFile(new File(index_file != null ? index_file : fileName + ".fmidx"));
+            }
             fat.open(new File(fileName));
-        } else {
+        } else if (!serve) {
             System.err.println("Filename not specified!");
             return;
         }
+        if (serve) {
+            if (fat != null) {
+                fat.getRoot();
+                fat.getFatTable();
+                server.addVolume(Server.DEFAULT_VOLUME, fat);
+            }
+            server.run();
+            if (print_stats) {
+                Stats.print(System.err);
+            }
+            return;
+        }
+        if (batch_file != null) {
+            BatchRunner batch = new BatchRunner(fat);
+            batch.load(batch_file);
+            batch.run();
+            if (print_stats) {
+                Stats.print(System.err);
+            }
+            fat.close();
+            return;
+        }
         if (isNeeded(INFO)) {
-            fat.printInfo(info_path, info_depth, true);
+            fat.printInfo(info_path, info_depth, true, output_format);
         }
         if (isNeeded(LIST)) {
-            fat.printInfo(list_path, list_depth, false);
+            fat.printInfo(list_path, list_depth, false, output_format);
         }
         if (isNeeded(PRINT)) {
-            fat.write(print_path, null);
+            if (print_offset > 0 || print_length >= 0) {
+                fat.print(print_path, print_offset, print_length);
+            } else {
+                fat.write(print_path, null);
+            }
+        }
+        if (isNeeded(FIND)) {
+            if (fat.printSearch(find_path, find_query, output_format, System.out) < 0) {
+                System.err.println("No such path");
+            }
+            System.out.flush();
+        }
+        if (isNeeded(FRAGMENTATION)) {
+            fat.printFragmentation(frag_worst, output_format, System.out);
+        }
+        if (isNeeded(RECOVER)) {
+            fat.recover(save_threads > 0 ? save_threads : Runtime.getRuntime().availableProcessors(), output_format, System.out);
+            System.out.flush();
+        }
+        if (isNeeded(MANIFEST)) {
+            fat.manifest(manifest_path, manifest_algorithm,
+                    save_threads > 0 ? save_threads : Runtime.getRuntime().availableProcessors(), output_format);
         }
         if (isNeeded(SAVE)) {
-            fat.write(save_from, save_to);
+            fat.write(save_from, save_to, save_threads);
+        }
+        CachedVolume cache = fat.getBlockCache();
+        if (cache != null && block_cache > 0) {
+            System.err.printf("Block cache: hits %d, misses %d, readahead blocks %d, bypassed reads %d\n",
+                    cache.getHits(), cache.getMisses(), cache.getReadaheadBlocks(), cache.getBypassed());
+        }
+        if (print_stats) {
+            Stats.print(System.err);
         }
         fat.close();
     }
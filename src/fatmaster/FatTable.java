@@ -0,0 +1,356 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the primary FAT table. Used by Fat to follow cluster
+ * chains without touching the volume.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+abstract class FatTable {
+
+    /**
+     * Size of block, in which FAT region is read from the volume
+     */
+    static final int LOAD_BLOCK_SIZE = 1 << 20;
+    /**
+     * Count of entries, decoded by one decode() call in the loops over the
+     * whole table (their bytes fit into LOAD_BLOCK_SIZE)
+     */
+    static final int DECODE_BLOCK_ENTRIES = LOAD_BLOCK_SIZE / 4;
+    /**
+     * Fat parent instance
+     */
+    final Fat parent;
+    /**
+     * Count of entries in the table (countOfClusters + 2)
+     */
+    final long entries;
+
+    FatTable(Fat parent) {
+        this.parent = parent;
+        this.entries = parent.countOfClusters + 2;
+    }
+
+    /**
+     * Returns value of the FAT entry (12, 16 or 28 bits, without EOC
+     * processing)
+     *
+     * @param clus Cluster number
+     * @return Value of FAT entry, end of chain mark for clusters out of table
+     * @throws IOException
+     */
+    abstract long get(long clus) throws IOException;
+
+    /**
+     * Checks, whether cluster has entry in the table
+     *
+     * @param clus Cluster number
+     * @return true if 0 <= clus < entries
+     */
+    boolean inRange(long clus) {
+        return clus >= 0 && clus < entries;
+    }
+
+    /**
+     * Counts free clusters (zero entries 2..countOfClusters+1) of the table
+     *
+     * @return Count of free clusters
+     * @throws IOException
+     */
+    long countFree() throws IOException {
+        long free = 0;
+        for (long i = 2; i < entries; i++) {
+            if (get(i) == 0) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Whether the whole table is kept in memory
+     *
+     * @return false if sectors of table are read on demand
+     */
+    boolean isResident() {
+        return true;
+    }
+
+    /**
+     * Size of the FAT region (one table), used by the volume, in bytes
+     *
+     * @param fat Fat instance
+     * @return Count of bytes, occupied by entries of the table
+     */
+    static long getByteSize(Fat fat) {
+        long entries = fat.countOfClusters + 2;
+        if (fat.type == 12) {
+            return entries + (entries + 1) / 2;
+        } else if (fat.type == 16) {
+            return entries * 2;
+        } else {
+            return entries * 4;
+        }
+    }
+
+    /**
+     * Loads FAT table of the volume. If it fits into limit, the whole table is
+     * loaded to memory, otherwise sectors of table are loaded on demand and no
+     * more than limit bytes are kept.
+     *
+     * @param fat Fat instance
+     * @param limit Maximum amount of memory (in bytes) for the table
+     * @return FatTable instance
+     * @throws IOException
+     */
+    static FatTable load(Fat fat, long limit) throws IOException {
+        long size = getByteSize(fat);
+        if (size > limit || size > Integer.MAX_VALUE - 8) {
+            return new Paged(fat, limit);
+        }
+        if (fat.type == 12) {
+            return new Fat12(fat);
+        } else if (fat.type == 16) {
+            return new Fat16(fat);
+        } else {
+            return new Fat32(fat);
+        }
+    }
+
+    /**
+     * Reads bytes of the primary FAT into buffer, block by block
+     *
+     * @param buffer Array, sized to contain (a part of) the table
+     * @param offset Offset in bytes from the beginning of the table
+     * @throws IOException
+     */
+    void readRegion(byte[] buffer, long offset) throws IOException {
+        long pos = (long) parent.rsvdSecCnt * parent.bytsPerSec + offset;
+        for (int i = 0; i < buffer.length; i += LOAD_BLOCK_SIZE) {
+            parent.readAt(pos + i, buffer, i, Math.min(LOAD_BLOCK_SIZE, buffer.length - i));
+        }
+    }
+
+    /**
+     * Reads entries from..from+count-1 of the primary FAT from the volume in
+     * one read and decodes them into values (12, 16 or 28 bits, without EOC
+     * processing)
+     *
+     * @param fat Fat instance
+     * @param from First entry
+     * @param count Count of entries
+     * @param values Array for decoded values
+     * @param offset Index of entry from in values
+     * @throws IOException
+     */
+    static void decode(Fat fat, long from, int count, int[] values, int offset) throws IOException {
+        long pos = (long) fat.rsvdSecCnt * fat.bytsPerSec;
+        if (fat.type == 12) {
+            //Two entries are packed in 3 bytes, so entry j starts at byte j + j / 2
+            long first = from + from / 2;
+            long last = from + count - 1;
+            byte[] block = new byte[(int) (last + last / 2 + 2 - first)];
+            fat.readAt(pos + first, block, 0, block.length);
+            for (int i = 0; i < count; i++) {
+                long j = from + i;
+                int k = (int) (j + j / 2 - first);
+                int pair = (block[k] & 0xFF) | ((block[k + 1] & 0xFF) << 8);
+                values[offset + i] = (j & 1) == 0 ? pair & 0x0FFF : pair >> 4;
+            }
+        } else if (fat.type == 16) {
+            byte[] block = new byte[count * 2];
+            fat.readAt(pos + from * 2, block, 0, block.length);
+            for (int i = 0, k = 0; i < count; i++, k += 2) {
+                values[offset + i] = (block[k] & 0xFF) | ((block[k + 1] & 0xFF) << 8);
+            }
+        } else {
+            byte[] block = new byte[count * 4];
+            fat.readAt(pos + from * 4, block, 0, block.length);
+            for (int i = 0, k = 0; i < count; i++, k += 4) {
+                values[offset + i] = (block[k] & 0xFF) | ((block[k + 1] & 0xFF) << 8)
+                        | ((block[k + 2] & 0xFF) << 16) | ((block[k + 3] & 0x0F) << 24);
+            }
+        }
+    }
+
+    /**
+     * FAT12 table: entries are kept packed, exactly as on the disk (3 bytes
+     * per 2 entries)
+     */
+    static class Fat12 extends FatTable {
+
+        final byte[] table;
+
+        Fat12(Fat parent) throws IOException {
+            super(parent);
+            table = new byte[(int) getByteSize(parent) + 1];
+            readRegion(table, 0);
+        }
+
+        @Override
+        long get(long clus) {
+            if (!inRange(clus)) {
+                return parent.EOC;
+            }
+            int off = (int) (clus + clus / 2);
+            int val = (table[off] & 0xFF) | ((table[off + 1] & 0xFF) << 8);
+            if ((clus & 1) == 1) {
+                return val >> 4;
+            }
+            return val & 0x0FFF;
+        }
+    }
+
+    /**
+     * FAT16 table, one char per entry
+     */
+    static class Fat16 extends FatTable {
+
+        final char[] table;
+
+        Fat16(Fat parent) throws IOException {
+            super(parent);
+            table = new char[(int) entries];
+            int[] values = new int[DECODE_BLOCK_ENTRIES];
+            for (int i = 0; i < table.length; i += values.length) {
+                int count = Math.min(values.length, table.length - i);
+                decode(parent, i, count, values, 0);
+                for (int j = 0; j < count; j++) {
+                    table[i + j] = (char) values[j];
+                }
+            }
+        }
+
+        @Override
+        long get(long clus) {
+            if (!inRange(clus)) {
+                return parent.EOC;
+            }
+            return table[(int) clus];
+        }
+
+        @Override
+        long countFree() {
+            long free = 0;
+            for (int i = 2; i < table.length; i++) {
+                if (table[i] == 0) {
+                    free++;
+                }
+            }
+            return free;
+        }
+    }
+
+    /**
+     * FAT32 table, one int per entry (upper 4 bits are cleared)
+     */
+    static class Fat32 extends FatTable {
+
+        final int[] table;
+
+        Fat32(Fat parent) throws IOException {
+            super(parent);
+            table = new int[(int) entries];
+            for (int i = 0; i < table.length; i += DECODE_BLOCK_ENTRIES) {
+                decode(parent, i, Math.min(DECODE_BLOCK_ENTRIES, table.length - i), table, i);
+            }
+        }
+
+        @Override
+        long get(long clus) {
+            if (!inRange(clus)) {
+                return parent.EOC;
+            }
+            return table[(int) clus];
+        }
+
+        @Override
+        long countFree() {
+            long free = 0;
+            for (int i = 2; i < table.length; i++) {
+                if (table[i] == 0) {
+                    free++;
+                }
+            }
+            return free;
+        }
+    }
+
+    /**
+     * Table, which doesn't fit into memory limit. Sectors of FAT are read on
+     * demand, least recently used ones are dropped.
+     */
+    static class Paged extends FatTable {
+
+        /**
+         * Count of bytes in one page (multiple of sector size)
+         */
+        final int pageSize;
+        /**
+         * Loaded pages, keys - page numbers
+         */
+        final LinkedHashMap<Long, byte[]> pages;
+
+        Paged(Fat parent, long limit) {
+            super(parent);
+            pageSize = parent.bytsPerSec * Math.max(1, 4096 / parent.bytsPerSec);
+            final int maxPages = (int) Math.max(2, Math.min(Integer.MAX_VALUE, limit / pageSize));
+            pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > maxPages;
+                }
+            };
+        }
+
+        /**
+         * Returns byte of FAT table
+         *
+         * @param offset Offset in bytes from the beginning of the table
+         * @return Unsigned byte value
+         * @throws IOException
+         */
+        int getByte(long offset) throws IOException {
+            long num = offset / pageSize;
+            byte[] page = pages.get(num);
+            if (page == null) {
+                page = new byte[pageSize];
+                readRegion(page, num * pageSize);
+                pages.put(num, page);
+            }
+            return page[(int) (offset % pageSize)] & 0xFF;
+        }
+
+        @Override
+        boolean isResident() {
+            return false;
+        }
+
+        @Override
+        synchronized long get(long clus) throws IOException {
+            if (!inRange(clus)) {
+                return parent.EOC;
+            }
+            if (parent.type == 12) {
+                long off = clus + clus / 2;
+                int val = getByte(off) | (getByte(off + 1) << 8);
+                if ((clus & 1) == 1) {
+                    return val >> 4;
+                }
+                return val & 0x0FFF;
+            } else if (parent.type == 16) {
+                return getByte(clus * 2) | (getByte(clus * 2 + 1) << 8);
+            } else {
+                long off = clus * 4;
+                return getByte(off) | (getByte(off + 1) << 8) | (getByte(off + 2) << 16)
+                        | ((long) (getByte(off + 3) & 0x0F) << 24);
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package fatmaster;
+
+import java.util.regex.Pattern;
+
+/**
+ * Criteria of find: name pattern (glob or regex, matched case-insensitively
+ * against long and short names, or against the whole path if glob contains
+ * '/'), type, size range, attribute mask and date ranges. All given criteria
+ * should match. Criteria are parsed from arguments:
+ * <pre>
+ * -name GLOB          - glob (*, ?, [...]) on name, on path if it contains '/' (** matches any part of path)
+ * -regex REGEX        - regular expression on name
+ * -type f|d           - files or directories only
+ * -size MIN-MAX       - size range (K, M, G suffixes, either bound may be omitted: 1M-, -4K)
+ * -attr MASK          - entry has all attributes of MASK (letters r, h, s, a or number)
+ * -mdate FROM..TO     - modification date range (YYYY-MM-DD, either bound may be omitted)
+ * -cdate FROM..TO     - creation date range
+ * -maxdepth NUM       - maximum depth below the start directory
+ * </pre>
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class FindQuery {
+
+    static final int TYPE_ANY = 0;
+    static final int TYPE_FILE = 1;
+    static final int TYPE_DIR = 2;
+    /**
+     * Pattern of name, null if name isn't checked
+     */
+    Pattern namePattern;
+    /**
+     * Pattern of path (relative to start directory, starting with '/'), null
+     * if path isn't checked
+     */
+    Pattern pathPattern;
+    /**
+     * Literal beginnings of name and path patterns in lower case, empty if
+     * pattern starts with wildcard
+     */
+    String namePrefix = "";
+    String pathPrefix = "";
+    /**
+     * Depth of paths, matched by path pattern (-1 if it's not fixed, i.e.
+     * pattern contains **)
+     */
+    int pathDepth = -1;
+    int type = TYPE_ANY;
+    long minSize = 0;
+    long maxSize = Long.MAX_VALUE;
+    int attributes = 0;
+    /**
+     * Date ranges in FAT format (it's ordered like YYYYMMDD)
+     */
+    int minWrtDate = 0;
+    int maxWrtDate = Integer.MAX_VALUE;
+    int minCrtDate = 0;
+    int maxCrtDate = Integer.MAX_VALUE;
+    int maxDepth = Integer.MAX_VALUE;
+
+    /**
+     * Checks, whether argument is name of criterion
+     *
+     * @param arg Argument
+     * @return true for -name, -regex, -type, -size, -attr, -mdate, -cdate and
+     * -maxdepth
+     */
+    static boolean isCriterion(String arg) {
+        switch (arg) {
+            case "-name":
+            case "-regex":
+            case "-type":
+            case "-size":
+            case "-attr":
+            case "-mdate":
+            case "-cdate":
+            case "-maxdepth":
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses criteria
+     *
+     * @param args Arguments
+     * @param from Index of the first criterion in args
+     * @param to Index after the last criterion
+     * @return Query
+     * @throws IllegalArgumentException if criteria are wrong
+     */
+    static FindQuery parse(String[] args, int from, int to) {
+        FindQuery query = new FindQuery();
+        for (int i = from; i < to; i += 2) {
+            if (!isCriterion(args[i])) {
+                throw new IllegalArgumentException("Unknown criterion: " + args[i]);
+            }
+            if (i + 1 >= to) {
+                throw new IllegalArgumentException("Value of " + args[i] + " isn't specified");
+            }
+            String value = args[i + 1];
+            try {
+                query.set(args[i], value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Wrong value of " + args[i] + ": " + value);
+            }
+        }
+        return query;
+    }
+
+    private void set(String criterion, String value) {
+        switch (criterion) {
+            case "-name":
+                if (value.indexOf('/') >= 0) {
+                    String glob = value.startsWith("/") ? value : "/" + value;
+                    pathPattern = Pattern.compile(globToRegex(glob), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                    pathPrefix = getLiteralPrefix(glob);
+                    if (!glob.contains("**")) {
+                        pathDepth = glob.split("/", -1).length - 1;
+                    }
+                } else {
+                    namePattern = Pattern.compile(globToRegex(value), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                    namePrefix = getLiteralPrefix(value);
+                }
+                break;
+            case "-regex":
+                namePattern = Pattern.compile(value, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                namePrefix = "";
+                break;
+            case "-type":
+                if (value.equals("f")) {
+                    type = TYPE_FILE;
+                } else if (value.equals("d")) {
+                    type = TYPE_DIR;
+                } else {
+                    throw new IllegalArgumentException();
+                }
+                break;
+            case "-size": {
+                int dash = value.indexOf('-');
+                if (dash < 0) {
+                    minSize = maxSize = Fat.parseSize(value);
+                } else {
+                    String min = value.substring(0, dash).trim();
+                    String max = value.substring(dash + 1).trim();
+                    minSize = min.isEmpty() ? 0 : Fat.parseSize(min);
+                    maxSize = max.isEmpty() ? Long.MAX_VALUE : Fat.parseSize(max);
+                }
+                break;
+            }
+            case "-attr":
+                attributes = parseAttributes(value);
+                break;
+            case "-mdate":
+            case "-cdate": {
+                int dots = value.indexOf("..");
+                String min = dots < 0 ? value : value.substring(0, dots);
+                String max = dots < 0 ? value : value.substring(dots + 2);
+                int minDate = min.trim().isEmpty() ? 0 : parseDate(min);
+                int maxDate = max.trim().isEmpty() ? Integer.MAX_VALUE : parseDate(max);
+                if (criterion.equals("-mdate")) {
+                    minWrtDate = minDate;
+                    maxWrtDate = maxDate;
+                } else {
+                    minCrtDate = minDate;
+                    maxCrtDate = maxDate;
+                }
+                break;
+            }
+            case "-maxdepth":
+                maxDepth = Integer.parseInt(value.trim());
+                break;
+        }
+    }
+
+    /**
+     * Converts glob to regular expression: * and ? don't match '/', **
+     * matches anything ("**&#47;" matches zero or more directories), [...] is a
+     * class of characters
+     */
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder(glob.length() * 2);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 2 < glob.length() && glob.charAt(i + 1) == '*' && glob.charAt(i + 2) == '/') {
+                    sb.append("(?:.*/)?");
+                    i += 2;
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    sb.append(".*");
+                    i++;
+                } else {
+                    sb.append("[^/]*");
+                }
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if (c == '[') {
+                int end = glob.indexOf(']', i + 2);
+                if (end < 0) {
+                    sb.append("\\[");
+                } else {
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    sb.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                }
+            } else if ("\\.^$+{}()|".indexOf(c) >= 0) {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String getLiteralPrefix(String glob) {
+        int i = 0;
+        while (i < glob.length() && "*?[".indexOf(glob.charAt(i)) < 0) {
+            i++;
+        }
+        return glob.substring(0, i).toLowerCase();
+    }
+
+    private static int parseAttributes(String value) {
+        if (value.matches("\\d+")) {
+            return Integer.parseInt(value);
+        }
+        if (value.matches("0[xX][0-9a-fA-F]+")) {
+            return Integer.parseInt(value.substring(2), 16);
+        }
+        int mask = 0;
+        for (char c : value.toLowerCase().toCharArray()) {
+            switch (c) {
+                case 'r':
+                    mask |= DirectoryEntry.ATTR_READ_ONLY;
+                    break;
+                case 'h':
+                    mask |= DirectoryEntry.ATTR_HIDDEN;
+                    break;
+                case 's':
+                    mask |= DirectoryEntry.ATTR_SYSTEM;
+                    break;
+                case 'd':
+                    mask |= DirectoryEntry.ATTR_DIRECTORY;
+                    break;
+                case 'a':
+                    mask |= DirectoryEntry.ATTR_ARCHIVE;
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Converts YYYY-MM-DD to FAT date
+     */
+    private static int parseDate(String value) {
+        String[] parts = value.trim().split("-");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException();
+        }
+        int year = Integer.parseInt(parts[0]);
+        int month = Integer.parseInt(parts[1]);
+        int day = Integer.parseInt(parts[2]);
+        return Math.max(0, year - 1980) << 9 | month << 5 | day;
+    }
+
+    /**
+     * Whether only names are checked (not paths), so matches can be taken
+     * from name index
+     *
+     * @return true if there is no path pattern and depth limit
+     */
+    boolean isNameOnly() {
+        return pathPattern == null && maxDepth == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Checks, whether entries below directory may match (used to skip
+     * subtrees)
+     *
+     * @param path Path of directory relative to start directory ("" for the
+     * start one)
+     * @param depth Depth of directory (0 for the start one)
+     * @return false if no successor of directory can match
+     */
+    boolean canContain(String path, int depth) {
+        if (depth >= maxDepth) {
+            return false;
+        }
+        if (pathPattern != null) {
+            if (pathDepth >= 0 && depth >= pathDepth) {
+                return false;
+            }
+            String dir = path.toLowerCase() + "/";
+            if (!dir.startsWith(pathPrefix) && !pathPrefix.startsWith(dir)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks, whether entry matches all criteria except path pattern and depth
+     *
+     * @param entry Entry
+     * @return true if entry matches
+     */
+    boolean matchesEntry(DirectoryEntry entry) {
+        if (type == TYPE_FILE && entry.isDir() || type == TYPE_DIR && !entry.isDir()) {
+            return false;
+        }
+        if (minSize > 0 || maxSize < Long.MAX_VALUE) {
+            if (entry.isDir() || entry.getFileSize() < minSize || entry.getFileSize() > maxSize) {
+                return false;
+            }
+        }
+        if ((entry.getAttributes() & attributes) != attributes) {
+            return false;
+        }
+        if (entry.getWrtDate() < minWrtDate || entry.getWrtDate() > maxWrtDate) {
+            return false;
+        }
+        if (entry.getCrtDate() < minCrtDate || entry.getCrtDate() > maxCrtDate) {
+            return false;
+        }
+        if (namePattern != null) {
+            String shortName = entry.getShortName();
+            boolean matched = entry.longName != null && !entry.longName.isEmpty()
+                    && namePattern.matcher(entry.longName).matches();
+            if (!matched && shortName != null) {
+                matched = namePattern.matcher(DirectoryEntry.getDottedName(shortName)).matches();
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks, whether entry matches all criteria
+     *
+     * @param entry Entry
+     * @param path Path of entry relative to start directory (starting with
+     * '/')
+     * @param depth Depth of entry (1 for children of start directory)
+     * @return true if entry matches
+     */
+    boolean matches(DirectoryEntry entry, String path, int depth) {
+        if (depth > maxDepth) {
+            return false;
+        }
+        if (pathPattern != null && !pathPattern.matcher(path).matches()) {
+            return false;
+        }
+        return matchesEntry(entry);
+    }
+}
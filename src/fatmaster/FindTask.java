@@ -0,0 +1,70 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Task of parallel find: checks children of directory against the query,
+ * subdirectories, which may contain matches, are searched by subtasks.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class FindTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Directory to search
+     */
+    private final DirectoryEntry dir;
+    /**
+     * Path of start directory ("" for root)
+     */
+    private final String base;
+    /**
+     * Path of directory relative to start directory ("" for the start one)
+     */
+    private final String path;
+    /**
+     * Depth of directory (0 for the start one)
+     */
+    private final int depth;
+    private final FindQuery query;
+    /**
+     * Matched entries by paths
+     */
+    private final Map<String, DirectoryEntry> results;
+
+    FindTask(DirectoryEntry dir, String base, String path, int depth, FindQuery query,
+            Map<String, DirectoryEntry> results) {
+        this.dir = dir;
+        this.base = base;
+        this.path = path;
+        this.depth = depth;
+        this.query = query;
+        this.results = results;
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            ArrayList<FindTask> tasks = new ArrayList<>();
+            for (DirectoryEntry child : dir.getRealChildren()) {
+                String childPath = path + "/" + child.getName();
+                if (query.matches(child, childPath, depth + 1)) {
+                    results.put(base + childPath, child);
+                }
+                if (child.isDir() && query.canContain(childPath, depth + 1)) {
+                    tasks.add(new FindTask(child, base, childPath, depth + 1, query, results));
+                }
+            }
+            invokeAll(tasks);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Fragmentation analysis of the volume. The whole FAT is decoded in one
+ * sequential pass into array of next clusters (free runs are counted on the
+ * fly), then the directory tree is walked and chains of all files and
+ * directories are followed in this array, so no FAT reads are done per
+ * cluster. Report contains count of fragments of files, the worst fragmented
+ * files, histogram of sizes of free extents and the largest free run.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class FragmentationReport {
+
+    /**
+     * Values of next[] for the last cluster of chain and for bad cluster
+     */
+    private static final int END = -1;
+    private static final int BAD = -2;
+    private final Fat parent;
+    /**
+     * Next cluster of every cluster, 0 for free ones
+     */
+    private int[] next;
+    private long freeClusters;
+    private long freeExtents;
+    private long badClusters;
+    private long largestFree;
+    private long largestFreeStart;
+    /**
+     * Count of free extents and their clusters by power of two of extent size
+     */
+    private final long[] histogramExtents = new long[64];
+    private final long[] histogramClusters = new long[64];
+    /**
+     * Collected entries (files and directories) in order of paths, their
+     * cluster counts and fragment counts
+     */
+    private final ArrayList<DirectoryEntry> entries = new ArrayList<>();
+    private final ArrayList<String> paths = new ArrayList<>();
+    private long[] clusters;
+    private int[] fragments;
+
+    /**
+     * Creates report
+     *
+     * @param parent Fat instance
+     */
+    FragmentationReport(Fat parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Analyzes the volume and prints report to out: text report with worst
+     * fragmented files, or, for JSON and TSV formats, fragments of every file
+     * and directory (the text summary is printed to System.err then)
+     *
+     * @param worst Count of the worst fragmented files to print
+     * @param format One of TreePrinter.FORMAT_* constants
+     * @param out Stream to print to
+     * @throws IOException
+     */
+    void print(int worst, int format, PrintStream out) throws IOException {
+        long startTime = System.nanoTime();
+        readFat();
+        long fatTime = System.nanoTime();
+        collect(parent.getRoot(), "");
+        countFragments();
+        long endTime = System.nanoTime();
+        PrintStream summary = out;
+        if (format != TreePrinter.FORMAT_TEXT) {
+            printEntries(format, out);
+            out.flush();
+            summary = System.err;
+        }
+        printSummary(worst, summary);
+        summary.printf("FAT decoded in %.3f s, chains followed in %.3f s\n", (fatTime - startTime) / 1e9, (endTime - fatTime) / 1e9);
+        summary.flush();
+    }
+
+    /**
+     * Decodes FAT by blocks of FatTable.DECODE_BLOCK_ENTRIES entries and
+     * counts free extents
+     */
+    private void readFat() throws IOException {
+        int count = (int) (parent.countOfClusters + 2);
+        next = new int[count];
+        long bad = parent.EOC - 1;
+        long run = 0;
+        for (int from = 0; from < count; from += FatTable.DECODE_BLOCK_ENTRIES) {
+            int entries = Math.min(FatTable.DECODE_BLOCK_ENTRIES, count - from);
+            FatTable.decode(parent, from, entries, next, from);
+            for (int clus = Math.max(2, from); clus < from + entries; clus++) {
+                int val = next[clus];
+                if (val == 0) {
+                    run++;
+                } else {
+                    if (run > 0) {
+                        addFreeExtent(clus - run, run);
+                        run = 0;
+                    }
+                    if (val == bad) {
+                        badClusters++;
+                        next[clus] = BAD;
+                    } else if (!parent.isValidClus(val)) {
+                        next[clus] = END;
+                    }
+                }
+            }
+        }
+        if (run > 0) {
+            addFreeExtent(count - run, run);
+        }
+    }
+
+    private void addFreeExtent(long start, long length) {
+        freeClusters += length;
+        freeExtents++;
+        int bucket = 63 - Long.numberOfLeadingZeros(length);
+        histogramExtents[bucket]++;
+        histogramClusters[bucket] += length;
+        if (length > largestFree) {
+            largestFree = length;
+            largestFreeStart = start;
+        }
+    }
+
+    private void collect(DirectoryEntry dir, String path) throws IOException {
+        for (DirectoryEntry child : dir.getRealChildren()) {
+            String childPath = path + "/" + child.getName();
+            entries.add(child);
+            paths.add(childPath);
+            if (child.isDir()) {
+                collect(child, childPath);
+            }
+        }
+    }
+
+    /**
+     * Follows chains of collected entries in next[]
+     */
+    private void countFragments() {
+        clusters = new long[entries.size()];
+        fragments = new int[entries.size()];
+        long maxLength = parent.countOfClusters;
+        for (int i = 0; i < entries.size(); i++) {
+            long clus = entries.get(i).dataClus;
+            if (!parent.isValidClus(clus)) {
+                continue;
+            }
+            long length = 1;
+            int count = 1;
+            int cur = (int) clus;
+            //Length is limited in case of loops in chain
+            while (next[cur] > 0 && length < maxLength) {
+                if (next[cur] != cur + 1) {
+                    count++;
+                }
+                cur = next[cur];
+                length++;
+            }
+            clusters[i] = length;
+            fragments[i] = count;
+        }
+    }
+
+    private void printSummary(int worst, PrintStream out) {
+        long files = 0, dirs = 0, fragmentedFiles = 0, fragmentedDirs = 0, fileFragments = 0;
+        ArrayList<Integer> fragmented = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).isDir()) {
+                dirs++;
+                if (fragments[i] > 1) {
+                    fragmentedDirs++;
+                }
+            } else {
+                files++;
+                fileFragments += fragments[i];
+                if (fragments[i] > 1) {
+                    fragmentedFiles++;
+                    fragmented.add(i);
+                }
+            }
+        }
+        out.printf("Files: %d, fragmented: %d (%.2f%%), fragments: %d (%.3f per file)\n", files, fragmentedFiles,
+                files > 0 ? fragmentedFiles * 100.0 / files : 0.0, fileFragments, files > 0 ? (double) fileFragments / files : 0.0);
+        out.printf("Directories: %d, fragmented: %d\n", dirs, fragmentedDirs);
+        if (worst > 0 && !fragmented.isEmpty()) {
+            Integer[] order = fragmented.toArray(new Integer[fragmented.size()]);
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return fragments[a] != fragments[b] ? Integer.compare(fragments[b], fragments[a]) : Integer.compare(a, b);
+                }
+            });
+            out.println("Worst fragmented files (fragments, clusters, size, path):");
+            for (int i = 0; i < Math.min(worst, order.length); i++) {
+                int index = order[i];
+                out.printf("  %d\t%d\t%d\t%s\n", fragments[index], clusters[index], entries.get(index).getFileSize(), paths.get(index));
+            }
+        }
+        out.printf("Free clusters: %d (%d bytes) in %d extents, bad clusters: %d\n", freeClusters,
+                freeClusters * parent.bytsPerClus, freeExtents, badClusters);
+        if (largestFree > 0) {
+            out.printf("Largest free run: %d clusters (%d bytes) at cluster %d\n", largestFree, largestFree * parent.bytsPerClus, largestFreeStart);
+            out.println("Free extents by size in clusters (extents, clusters):");
+            for (int i = 0; i < histogramExtents.length; i++) {
+                if (histogramExtents[i] > 0) {
+                    long min = 1L << i;
+                    String range = i == 0 ? "1" : min + "-" + (2 * min - 1);
+                    out.printf("  %s\t%d\t%d\n", range, histogramExtents[i], histogramClusters[i]);
+                }
+            }
+        }
+    }
+
+    private void printEntries(int format, PrintStream out) {
+        StringBuilder sb = new StringBuilder(256);
+        if (format == TreePrinter.FORMAT_TSV) {
+            out.print("path\tdir\tsize\tcluster\tclusters\tfragments\n");
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            DirectoryEntry entry = entries.get(i);
+            long size = entry.isDir() ? 0 : entry.getFileSize();
+            sb.setLength(0);
+            if (format == TreePrinter.FORMAT_JSON) {
+                sb.append("{\"path\":");
+                TreePrinter.appendJsonString(sb, paths.get(i));
+                sb.append(",\"dir\":").append(entry.isDir());
+                sb.append(",\"size\":").append(size);
+                sb.append(",\"cluster\":").append(entry.dataClus);
+                sb.append(",\"clusters\":").append(clusters[i]);
+                sb.append(",\"fragments\":").append(fragments[i]).append("}\n");
+            } else {
+                TreePrinter.appendTsvField(sb, paths.get(i));
+                sb.append('\t').append(entry.isDir() ? 1 : 0);
+                sb.append('\t').append(size);
+                sb.append('\t').append(entry.dataClus);
+                sb.append('\t').append(clusters[i]);
+                sb.append('\t').append(fragments[i]).append('\n');
+            }
+            out.print(sb);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts free clusters by streaming the primary FAT in big blocks. Entries are
+ * decoded in primitive loops, FAT16/FAT32 entries are checked for zero by
+ * several at once, packed in long values. Tables of more than one block are
+ * split between threads.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class FreeClusterCounter extends RecursiveTask<Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Count of entries, processed by one task (it's even, so FAT12 blocks
+     * start at byte boundary)
+     */
+    static final int BLOCK_ENTRIES = 1 << 18;
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * First entry to process
+     */
+    private final long from;
+    /**
+     * Entry, following the last one to process
+     */
+    private final long to;
+
+    private FreeClusterCounter(Fat parent, long from, long to) {
+        this.parent = parent;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Counts free clusters of the volume
+     *
+     * @param fat Fat instance
+     * @return Count of free clusters
+     * @throws IOException
+     */
+    static long count(Fat fat) throws IOException {
+        FreeClusterCounter counter = new FreeClusterCounter(fat, 2, fat.countOfClusters + 2);
+        if (fat.countOfClusters <= BLOCK_ENTRIES) {
+            return counter.countBlock();
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return pool.invoke(counter);
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected Long compute() {
+        try {
+            if (to - from <= BLOCK_ENTRIES) {
+                return countBlock();
+            }
+            long middle = from + ((to - from) / 2 + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES * BLOCK_ENTRIES;
+            FreeClusterCounter left = new FreeClusterCounter(parent, from, middle);
+            FreeClusterCounter right = new FreeClusterCounter(parent, middle, to);
+            left.fork();
+            return right.compute() + left.join();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads entries from..to-1 in one block and counts zero ones
+     *
+     * @return Count of free clusters
+     * @throws IOException
+     */
+    private long countBlock() throws IOException {
+        long fatPos = (long) parent.rsvdSecCnt * parent.bytsPerSec;
+        int entries = (int) (to - from);
+        long free = 0;
+        if (parent.type == 12) {
+            byte[] block = new byte[entries + (entries + 1) / 2 + 1];
+            parent.readAt(fatPos + from + from / 2, block, 0, block.length);
+            for (int i = 0, k = 0; i < entries; i += 2, k += 3) {
+                int b1 = block[k + 1] & 0xFF;
+                if ((block[k] & 0xFF) == 0 && (b1 & 0x0F) == 0) {
+                    free++;
+                }
+                if (i + 1 < entries && (b1 & 0xF0) == 0 && block[k + 2] == 0) {
+                    free++;
+                }
+            }
+        } else if (parent.type == 16) {
+            byte[] block = new byte[entries * 2];
+            parent.readAt(fatPos + from * 2, block, 0, block.length);
+            ByteBuffer buffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+            int longs = block.length / 8;
+            for (int i = 0; i < longs; i++) {
+                long x = buffer.getLong(i * 8);
+                //High bit of every 16-bit lane is set iff the lane is non-zero
+                long nonZero = (((x & 0x7FFF7FFF7FFF7FFFL) + 0x7FFF7FFF7FFF7FFFL) | x) & 0x8000800080008000L;
+                free += 4 - Long.bitCount(nonZero);
+            }
+            for (int i = longs * 4; i < entries; i++) {
+                if (buffer.getShort(i * 2) == 0) {
+                    free++;
+                }
+            }
+        } else {
+            byte[] block = new byte[entries * 4];
+            parent.readAt(fatPos + from * 4, block, 0, block.length);
+            ByteBuffer buffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+            int longs = block.length / 8;
+            for (int i = 0; i < longs; i++) {
+                //Entries are 28 bits, so adding to the lane never overflows it
+                long x = buffer.getLong(i * 8) & 0x0FFFFFFF0FFFFFFFL;
+                long nonZero = (x + 0x7FFFFFFF7FFFFFFFL) & 0x8000000080000000L;
+                free += 2 - Long.bitCount(nonZero);
+            }
+            for (int i = longs * 2; i < entries; i++) {
+                if ((buffer.getInt(i * 4) & 0x0FFFFFFF) == 0) {
+                    free++;
+                }
+            }
+        }
+        return free;
+    }
+}
@@ -0,0 +1,910 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generator of synthetic FAT12/FAT16/FAT32 images. Directory tree has given
+ * depth and fan-out, every directory contains files, count and sizes of which
+ * are drawn from given ranges (sizes are distributed log-uniformly). Root
+ * directory may also contain one huge directory with given count of files.
+ * Names are long ("Dir 1_0", "File number 2 of depth 1.txt", optionally
+ * padded to given length), short names are unique "F000000A"-like names.
+ * Chains of files and directories are fragmented with given probability,
+ * image is fully determined by seed and parameters.
+ *
+ * Clusters are written in the order of allocation, writes to adjacent
+ * positions are collected to big batches, unused clusters aren't written at
+ * all (image file is sparse, if file system supports it).
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class ImageGenerator {
+
+    static final int BYTS_PER_SEC = 512;
+    static final int NUM_FATS = 2;
+    /**
+     * Date of all entries (2012-11-01)
+     */
+    static final int DATE = ((2012 - 1980) << 9) | (11 << 5) | 1;
+    /**
+     * Time of all entries (12:00:00)
+     */
+    static final int TIME = 12 << 11;
+    /**
+     * Maximum count of clusters, skipped by one fragmentation gap
+     */
+    static final int MAX_GAP = 8;
+    /**
+     * Size of write batch in bytes
+     */
+    static final int BATCH_SIZE = 8 << 20;
+    /**
+     * Maximum length of long name
+     */
+    static final int MAX_NAME_LENGTH = 255;
+    /**
+     * Volume label of generated images
+     */
+    static final String LABEL = "FATMASTER  ";
+    private int type = 32;
+    private long size = 64 << 20;
+    private int clusterSize = 4096;
+    private int fanOut = 4;
+    private int depth = 3;
+    private int filesMin = 8;
+    private int filesMax = 8;
+    private long fileSizeMin = 4096;
+    private long fileSizeMax = 4096;
+    private int hugeDirFiles = 0;
+    private int nameLength = 0;
+    private double fragmentation = 0;
+    private long seed = 0;
+    /*
+     * Geometry of generated volume
+     */
+    private int secPerClus;
+    private int rsvdSecCnt;
+    private int rootEntCnt;
+    private int rootDirSectors;
+    private long totSec;
+    private long fatSz;
+    private long countOfClusters;
+    /**
+     * FAT table of generated volume
+     */
+    private int[] fat;
+    /**
+     * Next cluster to allocate
+     */
+    private long cursor;
+    /**
+     * Clusters, skipped by fragmentation gaps, they are used as first
+     * clusters of next chains
+     */
+    private ArrayDeque<Integer> holes;
+    private Random random;
+    /**
+     * Count of generated entries (files and directories, except the root)
+     */
+    private int entryCount;
+    /**
+     * Count of allocated clusters
+     */
+    private long usedClusters;
+    /**
+     * 'a'..'z', repeated: contents of files are copied from it
+     */
+    private byte[] pattern;
+
+    /**
+     * Sets type of FAT (12, 16 or 32)
+     *
+     * @param type Type of FAT
+     */
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    /**
+     * Sets size of volume (0 means minimal size for the type of FAT and the
+     * tree)
+     *
+     * @param size Size of volume in bytes
+     */
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Sets size of cluster (power of two, from 512 to 65536)
+     *
+     * @param clusterSize Size of cluster in bytes
+     */
+    public void setClusterSize(int clusterSize) {
+        this.clusterSize = clusterSize;
+    }
+
+    /**
+     * Sets count of subdirectories of every directory (except the deepest
+     * ones)
+     *
+     * @param fanOut Count of subdirectories
+     */
+    public void setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Sets depth of directory tree
+     *
+     * @param depth Count of directory levels under the root
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Sets count of files in every directory
+     *
+     * @param filesPerDir Count of files
+     */
+    public void setFilesPerDir(int filesPerDir) {
+        setFilesPerDir(filesPerDir, filesPerDir);
+    }
+
+    /**
+     * Sets range of count of files in directory (count is distributed
+     * uniformly)
+     *
+     * @param min Minimum count of files
+     * @param max Maximum count of files
+     */
+    public void setFilesPerDir(int min, int max) {
+        filesMin = min;
+        filesMax = Math.max(min, max);
+    }
+
+    /**
+     * Sets size of every file
+     *
+     * @param fileSize Size of file in bytes
+     */
+    public void setFileSize(long fileSize) {
+        setFileSize(fileSize, fileSize);
+    }
+
+    /**
+     * Sets range of file sizes (logarithm of size is distributed uniformly,
+     * so there are many small files and few big ones)
+     *
+     * @param min Minimum size of file in bytes
+     * @param max Maximum size of file in bytes
+     */
+    public void setFileSize(long min, long max) {
+        fileSizeMin = min;
+        fileSizeMax = Math.max(min, max);
+    }
+
+    /**
+     * Sets count of files in huge directory, added to the root directory
+     *
+     * @param hugeDirFiles Count of files (0 - no huge directory)
+     */
+    public void setHugeDirFiles(int hugeDirFiles) {
+        this.hugeDirFiles = hugeDirFiles;
+    }
+
+    /**
+     * Sets length of long names (shorter names are padded to it)
+     *
+     * @param nameLength Length of names, up to 255 (0 - names aren't padded)
+     */
+    public void setNameLength(int nameLength) {
+        this.nameLength = Math.min(MAX_NAME_LENGTH, nameLength);
+    }
+
+    /**
+     * Sets fragmentation ratio: probability, that the next cluster of chain
+     * is not adjacent to the previous one
+     *
+     * @param fragmentation Value from 0 to 1
+     */
+    public void setFragmentation(double fragmentation) {
+        this.fragmentation = fragmentation;
+    }
+
+    /**
+     * Sets seed of random generator (volume ID, counts and sizes of files,
+     * fragmentation gaps)
+     *
+     * @param seed Seed value
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Count of entries (files and directories, except the root), generated
+     * by the last generate() call
+     *
+     * @return Count of entries
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Count of clusters, allocated by the last generate() call
+     *
+     * @return Count of clusters
+     */
+    public long getUsedClusters() {
+        return usedClusters;
+    }
+
+    /**
+     * Node of generated tree. Names aren't stored, they are built from
+     * numbers, when needed
+     */
+    private static class Node {
+
+        /**
+         * Unique number of entry (used for short name and file contents)
+         */
+        final int number;
+        /**
+         * Index of entry among files (or subdirectories) of parent
+         */
+        final int index;
+        /**
+         * Depth of parent directory
+         */
+        final int level;
+        final boolean dir;
+        final long size;
+        /**
+         * Children of directory, null for files
+         */
+        final ArrayList<Node> children;
+        /**
+         * Name of huge directory, null for other entries
+         */
+        String name;
+        /**
+         * First cluster of chain, 0 if there is no chain
+         */
+        int firstClus;
+
+        Node(int number, int index, int level, boolean dir, long size) {
+            this.number = number;
+            this.index = index;
+            this.level = level;
+            this.dir = dir;
+            this.size = size;
+            this.children = dir ? new ArrayList<Node>() : null;
+        }
+    }
+
+    /**
+     * Generates image and writes it to file
+     *
+     * @param file Image file (it's overwritten)
+     * @throws IOException
+     */
+    public void generate(File file) throws IOException {
+        if (Integer.bitCount(clusterSize) != 1 || clusterSize < BYTS_PER_SEC || clusterSize > 128 * BYTS_PER_SEC) {
+            throw new IllegalArgumentException("Wrong cluster size: " + clusterSize);
+        }
+        if (type != 12 && type != 16 && type != 32) {
+            throw new IllegalArgumentException("Wrong type of FAT: " + type);
+        }
+        random = new Random(seed);
+        entryCount = 0;
+        Node root = new Node(0, 0, 0, true, 0);
+        buildTree(root, 0);
+        if (hugeDirFiles > 0) {
+            Node huge = new Node(++entryCount, 0, 0, true, 0);
+            huge.name = "Huge directory";
+            for (int i = 0; i < hugeDirFiles; i++) {
+                huge.children.add(new Node(++entryCount, i, 1, false, nextFileSize()));
+            }
+            root.children.add(huge);
+        }
+        computeGeometry(root);
+        fat = new int[(int) (countOfClusters + 2)];
+        fat[0] = type == 12 ? 0xFF8 : (type == 16 ? 0xFFF8 : 0x0FFFFFF8);
+        fat[1] = getEOC();
+        cursor = 2;
+        usedClusters = 0;
+        holes = new ArrayDeque<>();
+        allocate(root, true);
+        pattern = new byte[clusterSize + 26];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) ('a' + i % 26);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(totSec * BYTS_PER_SEC);
+            BatchWriter writer = new BatchWriter(raf.getChannel());
+            writeBootSector(writer);
+            writeFat(writer);
+            writeTree(writer, root, null, true);
+            writer.flush();
+        } finally {
+            fat = null;
+            holes = null;
+        }
+    }
+
+    /**
+     * Adds subdirectories (if level < depth) and files to directory
+     */
+    private void buildTree(Node dir, int level) {
+        if (level < depth) {
+            for (int i = 0; i < fanOut; i++) {
+                Node child = new Node(++entryCount, i, level, true, 0);
+                buildTree(child, level + 1);
+                dir.children.add(child);
+            }
+        }
+        int files = filesMin == filesMax ? filesMin : filesMin + random.nextInt(filesMax - filesMin + 1);
+        for (int i = 0; i < files; i++) {
+            dir.children.add(new Node(++entryCount, i, level, false, nextFileSize()));
+        }
+    }
+
+    /**
+     * Draws size of the next file
+     *
+     * @return Size of file in bytes
+     */
+    private long nextFileSize() {
+        if (fileSizeMin == fileSizeMax) {
+            return fileSizeMin;
+        }
+        double min = Math.log(fileSizeMin + 1);
+        double max = Math.log(fileSizeMax + 1);
+        long fileSize = (long) Math.exp(min + random.nextDouble() * (max - min)) - 1;
+        return Math.max(fileSizeMin, Math.min(fileSizeMax, fileSize));
+    }
+
+    /**
+     * Long name of entry
+     */
+    private String getLongName(Node node) {
+        String name;
+        String ext = "";
+        if (node.name != null) {
+            name = node.name;
+        } else if (node.dir) {
+            name = "Dir " + node.index + "_" + node.level;
+        } else {
+            name = "File number " + node.index + " of depth " + node.level;
+            ext = ".txt";
+        }
+        int padding = nameLength - name.length() - ext.length();
+        if (padding <= 0) {
+            return name + ext;
+        }
+        StringBuilder sb = new StringBuilder(nameLength).append(name).append(' ');
+        for (int i = 1; i < padding; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.append(ext).toString();
+    }
+
+    /**
+     * Short name of entry: "F" and number in base 36 (7 digits), "TXT"
+     * extension for files
+     */
+    private static byte[] getShortName(Node node) {
+        byte[] shortName = new byte[11];
+        Arrays.fill(shortName, (byte) ' ');
+        shortName[0] = 'F';
+        int number = node.number;
+        for (int i = 7; i >= 1; i--) {
+            shortName[i] = (byte) Character.toUpperCase(Character.forDigit(number % 36, 36));
+            number /= 36;
+        }
+        if (!node.dir) {
+            shortName[8] = 'T';
+            shortName[9] = 'X';
+            shortName[10] = 'T';
+        }
+        return shortName;
+    }
+
+    /**
+     * Count of directory slots (32-byte entries), occupied by directory
+     */
+    private long getSlots(Node dir, boolean isRoot) {
+        long slots = isRoot ? 1 : 2;
+        for (Node child : dir.children) {
+            slots += 1 + (getLongName(child).length() + DirectoryParser.LN_ENTRY_CHARS - 1) / DirectoryParser.LN_ENTRY_CHARS;
+        }
+        return slots;
+    }
+
+    /**
+     * Count of clusters in chain of node
+     */
+    private long getChainLength(Node node, boolean isRoot) {
+        if (node.dir) {
+            if (isRoot && type != 32) {
+                return 0;
+            }
+            return Math.max(1, (getSlots(node, isRoot) * DirectoryParser.ENTRY_SIZE + clusterSize - 1) / clusterSize);
+        }
+        return (node.size + clusterSize - 1) / clusterSize;
+    }
+
+    /**
+     * Count of clusters, needed by all the nodes of tree
+     */
+    private long getClusters(Node node, boolean isRoot) {
+        long clusters = getChainLength(node, isRoot);
+        if (node.dir) {
+            for (Node child : node.children) {
+                clusters += getClusters(child, false);
+            }
+        }
+        return clusters;
+    }
+
+    private long getFatBytes(long entries) {
+        if (type == 12) {
+            return (entries * 3 + 1) / 2;
+        } else if (type == 16) {
+            return entries * 2;
+        }
+        return entries * 4;
+    }
+
+    private void computeGeometry(Node root) {
+        secPerClus = clusterSize / BYTS_PER_SEC;
+        rsvdSecCnt = type == 32 ? 32 : 1;
+        rootEntCnt = 0;
+        if (type != 32) {
+            rootEntCnt = (int) Math.max(512, (getSlots(root, true) + 15) / 16 * 16);
+            if (rootEntCnt > 0xFFF0) {
+                throw new IllegalArgumentException("Too many entries in root directory");
+            }
+        }
+        rootDirSectors = rootEntCnt * DirectoryParser.ENTRY_SIZE / BYTS_PER_SEC;
+        long needed = getClusters(root, true);
+        long minClusters = type == 12 ? 1 : (type == 16 ? 4085 : 65525);
+        long maxClusters = type == 12 ? 4084 : (type == 16 ? 65524 : 0x0FFFFFF5);
+        long clusters = Math.max(minClusters, needed + needed / 4 + MAX_GAP);
+        totSec = size / BYTS_PER_SEC;
+        if (size == 0) {
+            totSec = rsvdSecCnt + rootDirSectors + NUM_FATS * ((getFatBytes(clusters + 2) + BYTS_PER_SEC - 1) / BYTS_PER_SEC)
+                    + clusters * secPerClus;
+        }
+        //Smallest FAT size, which covers all the clusters of data region
+        fatSz = 1;
+        while (getFatSectors(fatSz) > fatSz) {
+            fatSz = getFatSectors(fatSz);
+        }
+        while (fatSz > 1 && getFatSectors(fatSz - 1) <= fatSz - 1) {
+            fatSz--;
+        }
+        countOfClusters = (totSec - rsvdSecCnt - rootDirSectors - NUM_FATS * fatSz) / secPerClus;
+        if (countOfClusters < minClusters || countOfClusters > maxClusters) {
+            throw new IllegalArgumentException("Count of clusters (" + countOfClusters + ") doesn't fit FAT" + type
+                    + ", change size of volume or cluster size");
+        }
+        if (countOfClusters < needed) {
+            throw new IllegalArgumentException("Volume is too small for the tree");
+        }
+    }
+
+    /**
+     * Count of FAT sectors, needed to cover data region, if FAT has fatSz
+     * sectors
+     */
+    private long getFatSectors(long fatSz) {
+        long clusters = (totSec - rsvdSecCnt - rootDirSectors - NUM_FATS * fatSz) / secPerClus;
+        return (getFatBytes(clusters + 2) + BYTS_PER_SEC - 1) / BYTS_PER_SEC;
+    }
+
+    private int getEOC() {
+        return type == 12 ? 0xFFF : (type == 16 ? 0xFFFF : 0x0FFFFFFF);
+    }
+
+    /**
+     * Allocates cluster chains for node and it's subtree (in preorder)
+     */
+    private void allocate(Node node, boolean isRoot) {
+        long count = getChainLength(node, isRoot);
+        int prev = 0;
+        for (long i = 0; i < count; i++) {
+            int clus;
+            if (i == 0 && !holes.isEmpty() && !isRoot) {
+                clus = holes.poll();
+            } else {
+                if (i > 0 && random.nextDouble() < fragmentation) {
+                    int gap = 1 + random.nextInt(MAX_GAP);
+                    for (int j = 0; j < gap && cursor < countOfClusters + 2; j++) {
+                        holes.add((int) cursor++);
+                    }
+                }
+                if (cursor >= countOfClusters + 2) {
+                    if (holes.isEmpty()) {
+                        throw new IllegalArgumentException("Volume is too small for the tree");
+                    }
+                    clus = holes.poll();
+                } else {
+                    clus = (int) cursor++;
+                }
+            }
+            if (i == 0) {
+                node.firstClus = clus;
+            } else {
+                fat[prev] = clus;
+            }
+            fat[clus] = getEOC();
+            prev = clus;
+        }
+        usedClusters += count;
+        if (node.dir) {
+            for (Node child : node.children) {
+                allocate(child, false);
+            }
+        }
+    }
+
+    private long getFreeCount() {
+        return countOfClusters - usedClusters;
+    }
+
+    private void writeBootSector(BatchWriter writer) throws IOException {
+        ByteBuffer bs = ByteBuffer.allocate(BYTS_PER_SEC).order(ByteOrder.LITTLE_ENDIAN);
+        bs.put(new byte[]{(byte) 0xEB, 0x58, (byte) 0x90});
+        bs.put("FATMASTR".getBytes());
+        bs.putShort(11, (short) BYTS_PER_SEC);
+        bs.put(13, (byte) secPerClus);
+        bs.putShort(14, (short) rsvdSecCnt);
+        bs.put(16, (byte) NUM_FATS);
+        bs.putShort(17, (short) rootEntCnt);
+        if (totSec < 0x10000 && type != 32) {
+            bs.putShort(19, (short) totSec);
+        } else {
+            bs.putInt(32, (int) totSec);
+        }
+        bs.put(21, (byte) 0xF8);
+        long volID = random.nextInt() & 0xFFFFFFFFL;
+        int ext;
+        if (type == 32) {
+            bs.putInt(36, (int) fatSz);
+            bs.putInt(44, 2);
+            bs.putShort(48, (short) 1);
+            bs.putShort(50, (short) 6);
+            ext = 64;
+        } else {
+            bs.putShort(22, (short) fatSz);
+            ext = 36;
+        }
+        bs.put(ext, (byte) 0x80);
+        bs.put(ext + 2, (byte) 0x29);
+        bs.putInt(ext + 3, (int) volID);
+        bs.position(ext + 7);
+        bs.put(LABEL.getBytes());
+        bs.put(String.format("FAT%-5d", type).getBytes());
+        bs.putShort(510, (short) 0xAA55);
+        writer.write(0, bs.array(), 0, BYTS_PER_SEC);
+        if (type == 32) {
+            ByteBuffer fsi = ByteBuffer.allocate(BYTS_PER_SEC).order(ByteOrder.LITTLE_ENDIAN);
+            fsi.putInt(0, 0x41615252);
+            fsi.putInt(484, 0x61417272);
+            fsi.putInt(Fat.FSI_FREE_COUNT_OFFSET, (int) getFreeCount());
+            fsi.putInt(492, (int) cursor);
+            fsi.putInt(508, 0xAA550000);
+            writer.write(BYTS_PER_SEC, fsi.array(), 0, BYTS_PER_SEC);
+            writer.write(6 * BYTS_PER_SEC, bs.array(), 0, BYTS_PER_SEC);
+            writer.write(7 * BYTS_PER_SEC, fsi.array(), 0, BYTS_PER_SEC);
+        }
+    }
+
+    private void writeFat(BatchWriter writer) throws IOException {
+        if (fatSz * BYTS_PER_SEC > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("FAT is too big");
+        }
+        byte[] table = new byte[(int) (fatSz * BYTS_PER_SEC)];
+        if (type == 12) {
+            for (int i = 0; i < fat.length; i++) {
+                int value = fat[i];
+                int off = i + i / 2;
+                if ((i & 1) == 0) {
+                    table[off] = (byte) value;
+                    table[off + 1] = (byte) ((table[off + 1] & 0xF0) | ((value >> 8) & 0x0F));
+                } else {
+                    table[off] = (byte) ((table[off] & 0x0F) | ((value << 4) & 0xF0));
+                    table[off + 1] = (byte) (value >> 4);
+                }
+            }
+        } else if (type == 16) {
+            for (int i = 0; i < fat.length; i++) {
+                table[2 * i] = (byte) fat[i];
+                table[2 * i + 1] = (byte) (fat[i] >> 8);
+            }
+        } else {
+            ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(fat);
+        }
+        for (int i = 0; i < NUM_FATS; i++) {
+            writer.write((rsvdSecCnt + i * fatSz) * BYTS_PER_SEC, table, 0, table.length);
+        }
+    }
+
+    private long getClusPos(long clus) {
+        return (rsvdSecCnt + NUM_FATS * fatSz + rootDirSectors + (clus - 2) * secPerClus) * BYTS_PER_SEC;
+    }
+
+    /**
+     * Writes contents of node and it's subtree (in the order of allocation)
+     */
+    private void writeTree(BatchWriter writer, Node node, Node parentDir, boolean isRoot) throws IOException {
+        if (node.dir) {
+            writeDir(writer, node, parentDir, isRoot);
+            for (Node child : node.children) {
+                writeTree(writer, child, isRoot ? null : node, false);
+            }
+        } else {
+            byte[] data = new byte[clusterSize];
+            int clus = node.firstClus;
+            for (long offset = 0; offset < node.size; offset += clusterSize) {
+                //Byte at offset k of file is 'a' + (number + k) % 26
+                int count = (int) Math.min(clusterSize, node.size - offset);
+                System.arraycopy(pattern, (int) ((node.number + offset) % 26), data, 0, count);
+                if (count < clusterSize) {
+                    Arrays.fill(data, count, clusterSize, (byte) 0);
+                }
+                writer.write(getClusPos(clus), data, 0, clusterSize);
+                clus = fat[clus];
+            }
+        }
+    }
+
+    /**
+     * Writes entries of directory, cluster by cluster
+     */
+    private void writeDir(BatchWriter writer, Node dir, Node parentDir, boolean isRoot) throws IOException {
+        boolean rootRegion = isRoot && type != 32;
+        DirWriter out = new DirWriter(writer, rootRegion ? rootEntCnt * DirectoryParser.ENTRY_SIZE : clusterSize,
+                rootRegion ? -1 : dir.firstClus);
+        if (isRoot) {
+            out.putEntry(LABEL.getBytes(), DirectoryEntry.ATTR_VOLUME_ID, 0, 0);
+        } else {
+            out.putEntry(DirectoryEntry.DOT_SHORTNAME.getBytes(), DirectoryEntry.ATTR_DIRECTORY, dir.firstClus, 0);
+            out.putEntry(DirectoryEntry.DOTDOT_SHORTNAME.getBytes(), DirectoryEntry.ATTR_DIRECTORY,
+                    parentDir == null ? 0 : parentDir.firstClus, 0);
+        }
+        for (Node child : dir.children) {
+            byte[] shortName = getShortName(child);
+            out.putLongName(getLongName(child), shortName);
+            out.putEntry(shortName, child.dir ? DirectoryEntry.ATTR_DIRECTORY : DirectoryEntry.ATTR_ARCHIVE,
+                    child.firstClus, child.dir ? 0 : child.size);
+        }
+        out.close();
+    }
+
+    /**
+     * Writer of directory entries: fills buffer of one cluster (or of the
+     * whole FAT12/FAT16 root directory region) and passes it to batch writer
+     */
+    private class DirWriter {
+
+        final BatchWriter writer;
+        final ByteBuffer buffer;
+        /**
+         * Current cluster, -1 for FAT12/FAT16 root directory region
+         */
+        int clus;
+
+        DirWriter(BatchWriter writer, int bufferSize, int clus) {
+            this.writer = writer;
+            this.buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+            this.clus = clus;
+        }
+
+        /**
+         * Takes the next slot, writes out the buffer before, if it's full
+         *
+         * @return Offset of slot in buffer
+         */
+        int nextSlot() throws IOException {
+            if (!buffer.hasRemaining()) {
+                writer.write(getClusPos(clus), buffer.array(), 0, buffer.capacity());
+                Arrays.fill(buffer.array(), (byte) 0);
+                buffer.clear();
+                clus = fat[clus];
+            }
+            int pos = buffer.position();
+            buffer.position(pos + DirectoryParser.ENTRY_SIZE);
+            return pos;
+        }
+
+        void putEntry(byte[] shortName, int attributes, long clus, long fileSize) throws IOException {
+            int pos = nextSlot();
+            System.arraycopy(shortName, 0, buffer.array(), pos, 11);
+            buffer.put(pos + 11, (byte) attributes);
+            buffer.putShort(pos + 14, (short) TIME);
+            buffer.putShort(pos + 16, (short) DATE);
+            buffer.putShort(pos + 18, (short) DATE);
+            buffer.putShort(pos + 20, (short) (clus >>> 16));
+            buffer.putShort(pos + 22, (short) TIME);
+            buffer.putShort(pos + 24, (short) DATE);
+            buffer.putShort(pos + 26, (short) clus);
+            buffer.putInt(pos + 28, (int) fileSize);
+        }
+
+        /**
+         * Puts long name entries (last part first) of name
+         */
+        void putLongName(String name, byte[] shortName) throws IOException {
+            int sum = 0;
+            for (int i = 0; i < 11; i++) {
+                sum = (((sum & 1) << 7) + (sum >> 1) + (shortName[i] & 0xFF)) & 0xFF;
+            }
+            int count = (name.length() + DirectoryParser.LN_ENTRY_CHARS - 1) / DirectoryParser.LN_ENTRY_CHARS;
+            char[] chars = Arrays.copyOf(name.toCharArray(), count * DirectoryParser.LN_ENTRY_CHARS);
+            for (int i = name.length() + 1; i < chars.length; i++) {
+                chars[i] = 0xFFFF;
+            }
+            for (int ord = count; ord >= 1; ord--) {
+                int pos = nextSlot();
+                buffer.put(pos, (byte) (ord == count ? ord | 0x40 : ord));
+                buffer.put(pos + 11, (byte) DirectoryEntry.ATTR_LONG_NAME);
+                buffer.put(pos + 13, (byte) sum);
+                int start = (ord - 1) * DirectoryParser.LN_ENTRY_CHARS;
+                for (int i = 0; i < DirectoryParser.LN_ENTRY_CHARS; i++) {
+                    buffer.putChar(pos + DirectoryParser.LN_CHAR_OFFSETS[i], chars[start + i]);
+                }
+            }
+        }
+
+        /**
+         * Writes out the last (partially filled) buffer
+         */
+        void close() throws IOException {
+            long pos = clus < 0 ? (rsvdSecCnt + NUM_FATS * fatSz) * BYTS_PER_SEC : getClusPos(clus);
+            writer.write(pos, buffer.array(), 0, buffer.capacity());
+        }
+    }
+
+    /**
+     * Collects writes to adjacent positions into big batches
+     */
+    private static class BatchWriter {
+
+        final FileChannel channel;
+        final byte[] batch = new byte[BATCH_SIZE];
+        /**
+         * Position of the first byte of batch in file
+         */
+        long start;
+        /**
+         * Count of bytes in batch
+         */
+        int length;
+
+        BatchWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(long pos, byte[] data, int offset, int count) throws IOException {
+            if (length > 0 && (pos != start + length || length + count > batch.length)) {
+                flush();
+            }
+            if (count > batch.length) {
+                writeFully(pos, ByteBuffer.wrap(data, offset, count));
+                return;
+            }
+            if (length == 0) {
+                start = pos;
+            }
+            System.arraycopy(data, offset, batch, length, count);
+            length += count;
+        }
+
+        void flush() throws IOException {
+            if (length > 0) {
+                writeFully(start, ByteBuffer.wrap(batch, 0, length));
+                length = 0;
+            }
+        }
+
+        private void writeFully(long pos, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                pos += channel.write(buffer, pos);
+            }
+        }
+    }
+
+    /**
+     * Generates image, parameters are given as NAME=VALUE (sizes may have K,
+     * M or G suffix): type (12, 16 or 32), size (0 - minimal), cluster, depth,
+     * fanout, files (count of files in directory: NUM or MIN-MAX), filesize
+     * (SIZE or MIN-MAX), huge (count of files in huge directory), namelength,
+     * fragmentation (0..1), seed
+     *
+     * @param args FILE [NAME=VALUE ...]
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: ImageGenerator FILE [type=12|16|32] [size=SIZE] [cluster=SIZE] [depth=NUM] [fanout=NUM]"
+                    + " [files=NUM[-NUM]] [filesize=SIZE[-SIZE]] [huge=NUM] [namelength=NUM] [fragmentation=RATIO] [seed=NUM]");
+            return;
+        }
+        ImageGenerator generator = new ImageGenerator();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Wrong parameter: " + args[i]);
+                return;
+            }
+            String name = args[i].substring(0, eq).trim().toLowerCase();
+            String value = args[i].substring(eq + 1).trim();
+            String[] range = value.split("-", 2);
+            switch (name) {
+                case "type":
+                    generator.setType(Integer.parseInt(value));
+                    break;
+                case "size":
+                    generator.setSize(Fat.parseSize(value));
+                    break;
+                case "cluster":
+                    generator.setClusterSize((int) Fat.parseSize(value));
+                    break;
+                case "depth":
+                    generator.setDepth(Integer.parseInt(value));
+                    break;
+                case "fanout":
+                    generator.setFanOut(Integer.parseInt(value));
+                    break;
+                case "files":
+                    generator.setFilesPerDir(Integer.parseInt(range[0]), Integer.parseInt(range[range.length - 1]));
+                    break;
+                case "filesize":
+                    generator.setFileSize(Fat.parseSize(range[0]), Fat.parseSize(range[range.length - 1]));
+                    break;
+                case "huge":
+                    generator.setHugeDirFiles(Integer.parseInt(value));
+                    break;
+                case "namelength":
+                    generator.setNameLength(Integer.parseInt(value));
+                    break;
+                case "fragmentation":
+                    generator.setFragmentation(Double.parseDouble(value));
+                    break;
+                case "seed":
+                    generator.setSeed(Long.parseLong(value));
+                    break;
+                default:
+                    System.err.println("Unknown parameter: " + name);
+                    return;
+            }
+        }
+        long startTime = System.nanoTime();
+        try {
+            generator.generate(new File(args[0]));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println("Entries: " + generator.getEntryCount());
+        System.out.println("Clusters used: " + generator.getUsedClusters());
+        System.out.printf("Time (s): %.3f\n", (System.nanoTime() - startTime) / 1e9);
+    }
+}
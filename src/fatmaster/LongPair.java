@@ -1,21 +0,0 @@
-package fatmaster;
-
-/**
- * Tiny class, used as container
- *
- * @author George Agapov <george.agapov@gmail.com>
- * @link https://github.com/georgeee/FAT-Master
- * @license http://www.opensource.org/licenses/bsd-license.php
- */
-public class LongPair {
-
-    public long a, b;
-
-    LongPair() {
-    }
-
-    void set(long _a, long _b) {
-        a = _a;
-        b = _b;
-    }
-}
@@ -0,0 +1,301 @@
+package fatmaster;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Manifest of files: digest of every file is computed right from its
+ * clusters, nothing is written to the disk. The tree is walked first, then
+ * files are hashed by pool of threads, which take them in order of their
+ * first cluster, so concurrent reads stay close to each other. Every file is
+ * read by its thread in chunks of up to CHUNK_SIZE bytes (one read per chunk
+ * of contiguous clusters). Manifest is printed in order of paths, as TSV
+ * (path, size, first cluster, digest, truncated flag) or JSON lines. File is
+ * truncated, if its cluster chain ends before its size, digest covers only
+ * the read part then.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class ManifestBuilder {
+
+    static final int ALGORITHM_SHA256 = 0;
+    static final int ALGORITHM_CRC32C = 1;
+    static final int ALGORITHM_XXHASH64 = 2;
+    static final String[] ALGORITHM_NAMES = {"sha256", "crc32c", "xxhash64"};
+    /**
+     * Maximum size of one read in bytes
+     */
+    static final int CHUNK_SIZE = 4 << 20;
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    private final int algorithm;
+    private final int threads;
+    /**
+     * Collected files in order of paths, their digests and counts of hashed
+     * bytes
+     */
+    private final ArrayList<DirectoryEntry> files = new ArrayList<>();
+    private final ArrayList<String> paths = new ArrayList<>();
+    private String[] digests;
+    private long[] hashedSizes;
+
+    /**
+     * Creates manifest builder
+     *
+     * @param parent Fat instance
+     * @param algorithm One of ALGORITHM_* constants
+     * @param threads Count of hashing threads
+     */
+    ManifestBuilder(Fat parent, int algorithm, int threads) {
+        this.parent = parent;
+        this.algorithm = algorithm;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Parses name of algorithm
+     *
+     * @param name sha256, crc32c or xxhash64
+     * @return One of ALGORITHM_* constants, -1 if name is unknown
+     */
+    static int parseAlgorithm(String name) {
+        for (int i = 0; i < ALGORITHM_NAMES.length; i++) {
+            if (ALGORITHM_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes all files of dir (or file itself), prints manifest to out and
+     * summary (count of files and bytes, time) to System.err
+     *
+     * @param entry Dir/file
+     * @param path Path of entry
+     * @param format TreePrinter.FORMAT_JSON for JSON lines, TSV otherwise
+     * @param out Stream to print manifest to
+     * @throws IOException
+     */
+    void build(DirectoryEntry entry, String path, int format, OutputStream out) throws IOException {
+        long startTime = System.nanoTime();
+        collect(entry, path);
+        final long byteCount = hashAll();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        if (format != TreePrinter.FORMAT_JSON) {
+            writer.write("path\tsize\tcluster\t" + ALGORITHM_NAMES[algorithm] + "\ttruncated\n");
+        }
+        StringBuilder sb = new StringBuilder(256);
+        int truncatedCount = 0;
+        for (int i = 0; i < files.size(); i++) {
+            DirectoryEntry file = files.get(i);
+            boolean truncated = hashedSizes[i] < file.getFileSize();
+            if (truncated) {
+                truncatedCount++;
+            }
+            sb.setLength(0);
+            if (format == TreePrinter.FORMAT_JSON) {
+                sb.append("{\"path\":");
+                TreePrinter.appendJsonString(sb, paths.get(i));
+                sb.append(",\"size\":").append(file.getFileSize());
+                sb.append(",\"cluster\":").append(file.dataClus);
+                sb.append(",\"").append(ALGORITHM_NAMES[algorithm]).append("\":\"").append(digests[i]).append('"');
+                sb.append(",\"truncated\":").append(truncated).append("}\n");
+            } else {
+                TreePrinter.appendTsvField(sb, paths.get(i));
+                sb.append('\t').append(file.getFileSize());
+                sb.append('\t').append(file.dataClus);
+                sb.append('\t').append(digests[i]);
+                sb.append('\t').append(truncated ? 1 : 0).append('\n');
+            }
+            writer.write(sb.toString());
+        }
+        writer.flush();
+        double time = (System.nanoTime() - startTime) / 1e9;
+        System.err.printf("Files hashed: %d\n", files.size());
+        System.err.printf("Bytes hashed: %d\n", byteCount);
+        if (truncatedCount > 0) {
+            System.err.printf("Truncated files (chain is shorter than size): %d\n", truncatedCount);
+        }
+        System.err.printf("Time (s): %.3f, %.1f MB/s\n", time, byteCount / 1e6 / time);
+    }
+
+    private void collect(DirectoryEntry entry, String path) throws IOException {
+        if (entry.isDir()) {
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (DirectoryEntry child : entry.getRealChildren()) {
+                collect(child, prefix + child.getName());
+            }
+        } else {
+            files.add(entry);
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Hashes collected files in order of their first clusters
+     *
+     * @return Count of hashed bytes
+     */
+    private long hashAll() throws IOException {
+        digests = new String[files.size()];
+        hashedSizes = new long[files.size()];
+        final Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(files.get(a).dataClus, files.get(b).dataClus);
+            }
+        });
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong byteCount = new AtomicLong();
+        final AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fat-hasher-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    Hasher hasher = new Hasher(algorithm);
+                    int i;
+                    while ((i = next.getAndIncrement()) < order.length) {
+                        int index = order[i];
+                        hashedSizes[index] = hash(files.get(index), hasher, buffer);
+                        byteCount.addAndGet(hashedSizes[index]);
+                        digests[index] = hasher.finish();
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return byteCount.get();
+    }
+
+    /**
+     * Feeds data of file to hasher
+     *
+     * @return Count of hashed bytes, less than size of file, if its chain is
+     * too short
+     */
+    private long hash(DirectoryEntry file, Hasher hasher, ByteBuffer buffer) throws IOException {
+        long size = file.getFileSize();
+        ClusterChain chain = size > 0 ? file.getChain() : ClusterChain.EMPTY;
+        long hashed = 0;
+        for (int i = 0; i < chain.size() && hashed < size; i++) {
+            long pos = parent.getClusPos(chain.getStart(i));
+            long extentSize = Math.min(size - hashed, chain.getLength(i) * parent.bytsPerClus);
+            while (extentSize > 0) {
+                int len = (int) Math.min(extentSize, buffer.capacity());
+                buffer.clear().limit(len);
+                parent.readAt(pos, buffer);
+                buffer.flip();
+                hasher.update(buffer);
+                pos += len;
+                extentSize -= len;
+                hashed += len;
+            }
+        }
+        return hashed;
+    }
+
+    /**
+     * Digest of one of supported algorithms, reusable after finish()
+     */
+    private static class Hasher {
+
+        private final MessageDigest sha256;
+        private final CRC32C crc32c;
+        private final XxHash64 xxHash64;
+
+        Hasher(int algorithm) {
+            try {
+                sha256 = algorithm == ALGORITHM_SHA256 ? MessageDigest.getInstance("SHA-256") : null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            crc32c = algorithm == ALGORITHM_CRC32C ? new CRC32C() : null;
+            xxHash64 = algorithm == ALGORITHM_XXHASH64 ? new XxHash64() : null;
+        }
+
+        void update(ByteBuffer buffer) {
+            if (sha256 != null) {
+                sha256.update(buffer);
+            } else if (crc32c != null) {
+                crc32c.update(buffer);
+            } else {
+                xxHash64.update(buffer);
+            }
+        }
+
+        /**
+         * Returns digest as hex string and resets hasher
+         */
+        String finish() {
+            if (sha256 != null) {
+                byte[] digest = sha256.digest();
+                StringBuilder sb = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return sb.toString();
+            } else if (crc32c != null) {
+                String hex = String.format("%08x", crc32c.getValue());
+                crc32c.reset();
+                return hex;
+            } else {
+                String hex = String.format("%016x", xxHash64.getValue());
+                xxHash64.reset();
+                return hex;
+            }
+        }
+    }
+}
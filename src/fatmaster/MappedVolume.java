@@ -0,0 +1,92 @@
+package fatmaster;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Volume, mapped to memory. Volume is mapped by chunks of CHUNK_SIZE bytes,
+ * so images bigger than 2 GB are supported too.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class MappedVolume extends Volume {
+
+    /**
+     * Size of one mapped chunk in bytes
+     */
+    static final int CHUNK_SIZE = 1 << 30;
+    /**
+     * Mapped chunks, i-th chunk starts from i * CHUNK_SIZE byte of volume
+     */
+    MappedByteBuffer[] chunks;
+    /**
+     * Size of volume in bytes
+     */
+    long size;
+
+    public MappedVolume(File _file) throws IOException {
+        super(_file);
+        try {
+            FileChannel channel = file.getChannel();
+            size = channel.size();
+            if (size == 0) {
+                throw new IOException("Can't map empty file (or device)");
+            }
+            chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void read(long pos, byte[] bytes, int offset, int len) throws IOException {
+        if (pos < 0 || pos + len > size) {
+            throw new EOFException();
+        }
+        countRead(pos, len);
+        while (len > 0) {
+            ByteBuffer chunk = chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+            int chunkOffset = (int) (pos % CHUNK_SIZE);
+            int count = Math.min(len, chunk.limit() - chunkOffset);
+            chunk.position(chunkOffset);
+            chunk.get(bytes, offset, count);
+            pos += count;
+            offset += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void read(long pos, ByteBuffer buffer) throws IOException {
+        if (pos < 0 || pos + buffer.remaining() > size) {
+            throw new EOFException();
+        }
+        countRead(pos, buffer.remaining());
+        while (buffer.hasRemaining()) {
+            ByteBuffer chunk = chunks[(int) (pos / CHUNK_SIZE)].duplicate();
+            int chunkOffset = (int) (pos % CHUNK_SIZE);
+            int count = Math.min(buffer.remaining(), chunk.limit() - chunkOffset);
+            chunk.position(chunkOffset);
+            chunk.limit(chunkOffset + count);
+            buffer.put(chunk);
+            pos += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks = null;
+        super.close();
+    }
+}
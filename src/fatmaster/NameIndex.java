@@ -0,0 +1,194 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+/**
+ * In-memory index of names of all entries of the volume: long and short
+ * names, sorted case-insensitively, so entries with given beginning of name
+ * are found with binary search, and other name queries scan only the names
+ * instead of walking the tree. Paths aren't stored (every entry keeps only
+ * index of its parent), they are built only for matched entries. It's built
+ * by the second search of the whole volume (see Fat.search()), when all
+ * directories are already read.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class NameIndex {
+
+    private static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            return String.CASE_INSENSITIVE_ORDER.compare(a.name, b.name);
+        }
+    };
+    /**
+     * Names, sorted case-insensitively
+     */
+    private final Key[] keys;
+    /**
+     * Entries in breadth-first order
+     */
+    private final DirectoryEntry[] entries;
+    /**
+     * Index of parent of every entry (-1 for children of root)
+     */
+    private final int[] parents;
+
+    /**
+     * Builds index
+     *
+     * @param root Root directory
+     * @throws IOException
+     */
+    NameIndex(DirectoryEntry root) throws IOException {
+        ArrayList<DirectoryEntry> entryList = new ArrayList<>();
+        ArrayList<Key> keyList = new ArrayList<>();
+        addChildren(root, entryList, keyList);
+        int[] parentList = new int[Math.max(1024, entryList.size())];
+        Arrays.fill(parentList, 0, entryList.size(), -1);
+        for (int dir = 0; dir < entryList.size(); dir++) {
+            DirectoryEntry entry = entryList.get(dir);
+            if (!entry.isDir()) {
+                continue;
+            }
+            int from = entryList.size();
+            addChildren(entry, entryList, keyList);
+            if (entryList.size() > parentList.length) {
+                parentList = Arrays.copyOf(parentList, Math.max(parentList.length * 2, entryList.size()));
+            }
+            Arrays.fill(parentList, from, entryList.size(), dir);
+        }
+        entries = entryList.toArray(new DirectoryEntry[entryList.size()]);
+        parents = Arrays.copyOf(parentList, entries.length);
+        keys = keyList.toArray(new Key[keyList.size()]);
+        Arrays.sort(keys, KEY_ORDER);
+    }
+
+    private static void addChildren(DirectoryEntry dir, ArrayList<DirectoryEntry> entryList, ArrayList<Key> keyList) throws IOException {
+        for (DirectoryEntry child : dir.getRealChildren()) {
+            int item = entryList.size();
+            entryList.add(child);
+            String longName = child.longName != null && !child.longName.isEmpty() ? child.longName : null;
+            if (longName != null) {
+                keyList.add(new Key(longName, item));
+            }
+            String shortName = child.getShortName();
+            if (shortName != null) {
+                shortName = DirectoryEntry.getDottedName(shortName);
+                if (longName == null || !shortName.equalsIgnoreCase(longName)) {
+                    keyList.add(new Key(shortName, item));
+                }
+            }
+        }
+    }
+
+    /**
+     * Count of indexed entries
+     *
+     * @return Count of entries
+     */
+    int size() {
+        return entries.length;
+    }
+
+    /**
+     * Finds entries, matching name query (FindQuery.isNameOnly() should be
+     * true)
+     *
+     * @param query Query
+     * @param start Start directory
+     * @param base Path of start directory ("" for root), paths of results
+     * are built from it, like in tree walk
+     * @return Matched entries by paths
+     */
+    TreeMap<String, DirectoryEntry> search(FindQuery query, DirectoryEntry start, String base) {
+        String prefix = query.namePrefix;
+        int from = 0;
+        int to = keys.length;
+        if (!prefix.isEmpty()) {
+            from = lowerBound(prefix);
+            to = from;
+            while (to < keys.length && keys[to].name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                to++;
+            }
+        }
+        //Directories are identified by their first cluster
+        long startClus = start.isRootDir ? -1 : start.dataClus;
+        BitSet seen = new BitSet(entries.length);
+        TreeMap<String, DirectoryEntry> results = new TreeMap<>();
+        for (int i = from; i < to; i++) {
+            int item = keys[i].item;
+            if (seen.get(item)) {
+                continue;
+            }
+            seen.set(item);
+            if (query.matchesEntry(entries[item])) {
+                String path = getPath(item, startClus, base);
+                if (path != null) {
+                    results.put(path, entries[item]);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Builds path of entry below start directory
+     *
+     * @param startClus First cluster of start directory, -1 for root
+     * @return Path, null if entry isn't below start directory
+     */
+    private String getPath(int item, long startClus, String base) {
+        ArrayList<String> names = new ArrayList<>();
+        int i = item;
+        for (; i >= 0; i = parents[i]) {
+            if (startClus >= 0 && entries[i].isDir() && entries[i].dataClus == startClus) {
+                break;
+            }
+            names.add(entries[i].getName());
+        }
+        if (startClus >= 0 && i < 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(base);
+        for (int k = names.size() - 1; k >= 0; k--) {
+            sb.append('/').append(names.get(k));
+        }
+        return sb.toString();
+    }
+
+    private int lowerBound(String name) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(keys[mid].name, name) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Name of entry
+     */
+    private static class Key {
+
+        final String name;
+        final int item;
+
+        Key(String name, int item) {
+            this.name = name;
+            this.item = item;
+        }
+    }
+}
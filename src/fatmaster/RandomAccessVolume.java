@@ -0,0 +1,26 @@
+package fatmaster;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Volume, read through RandomAccessFile (seek and read for every request).
+ * Works with everything, including block devices.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class RandomAccessVolume extends Volume {
+
+    public RandomAccessVolume(File _file) throws IOException {
+        super(_file);
+    }
+
+    @Override
+    public synchronized void read(long pos, byte[] bytes, int offset, int len) throws IOException {
+        countRead(pos, len);
+        file.seek(pos);
+        file.readFully(bytes, offset, len);
+    }
+}
@@ -0,0 +1,210 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipeline for extraction of big files: reader thread reads upcoming parts of
+ * cluster chain into direct buffers, while calling thread writes already read
+ * buffers to the destination, so reads and writes overlap. Buffers are taken
+ * from a fixed pool and returned to it after writing.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class ReadPipeline {
+
+    /**
+     * Marker of the end of data in queue of read buffers
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * Size of one buffer in bytes
+     */
+    private final int bufferSize;
+    /**
+     * Count of buffers in the pool
+     */
+    private final int depth;
+    /**
+     * Pool of free buffers
+     */
+    private final BlockingQueue<ByteBuffer> pool;
+    /**
+     * Reader threads
+     */
+    private final ExecutorService readers;
+
+    /**
+     * Creates pipeline and allocates its buffers
+     *
+     * @param parent Fat instance
+     * @param depth Count of buffers (at least 2)
+     * @param bufferSize Size of buffer in bytes
+     * @throws IllegalArgumentException if bufferSize isn't positive
+     */
+    ReadPipeline(Fat parent, int depth, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Wrong size of pipeline buffer: " + bufferSize);
+        }
+        this.parent = parent;
+        this.depth = Math.max(2, depth);
+        this.bufferSize = bufferSize;
+        pool = new ArrayBlockingQueue<>(this.depth);
+        for (int i = 0; i < this.depth; i++) {
+            pool.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        readers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fat-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Size of one buffer in bytes
+     *
+     * @return Buffer size
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Writes size bytes of cluster chain to target
+     *
+     * @param chain Cluster chain of file
+     * @param size Count of bytes to write
+     * @param target Channel, to which we should write
+     * @return Count of written bytes
+     * @throws IOException
+     */
+    long transfer(final ClusterChain chain, final long size, WritableByteChannel target) throws IOException {
+        final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(depth + 1);
+        final AtomicReference<IOException> readError = new AtomicReference<>();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(chain, size, filled, cancelled);
+                } catch (IOException e) {
+                    readError.set(e);
+                } catch (InterruptedException e) {
+                    readError.set(new InterruptedIOException());
+                } finally {
+                    putUninterruptibly(filled, END);
+                }
+            }
+        });
+        long written = 0;
+        IOException writeError = null;
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) {
+                    break;
+                }
+                try {
+                    if (writeError == null) {
+                        while (buffer.hasRemaining()) {
+                            written += target.write(buffer);
+                        }
+                    }
+                } catch (IOException e) {
+                    writeError = e;
+                    cancelled.set(true);
+                } finally {
+                    putUninterruptibly(pool, buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (readError.get() != null) {
+            throw readError.get();
+        }
+        return written;
+    }
+
+    /**
+     * Reads chain to buffers from the pool and passes them to filled queue
+     *
+     * @param chain Cluster chain of file
+     * @param size Count of bytes to read
+     * @param filled Queue of read buffers
+     * @param cancelled Set by writer, if reading should be stopped
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void read(ClusterChain chain, long size, BlockingQueue<ByteBuffer> filled, AtomicBoolean cancelled) throws IOException, InterruptedException {
+        long left = size;
+        for (int i = 0; i < chain.size() && left > 0; i++) {
+            long pos = parent.getClusPos(chain.getStart(i));
+            long extentSize = Math.min(left, chain.getLength(i) * parent.bytsPerClus);
+            left -= extentSize;
+            while (extentSize > 0) {
+                if (cancelled.get()) {
+                    return;
+                }
+                ByteBuffer buffer = pool.take();
+                buffer.clear();
+                if (buffer.capacity() > extentSize) {
+                    buffer.limit((int) extentSize);
+                }
+                try {
+                    parent.readAt(pos, buffer);
+                } catch (IOException e) {
+                    pool.put(buffer);
+                    throw e;
+                }
+                buffer.flip();
+                pos += buffer.remaining();
+                extentSize -= buffer.remaining();
+                filled.put(buffer);
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(buffer);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops reader threads
+     */
+    void close() {
+        readers.shutdown();
+    }
+}
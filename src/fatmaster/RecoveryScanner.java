@@ -0,0 +1,510 @@
+package fatmaster;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recovery scan: finds deleted directory entries (0xE5) and entries of
+ * directory clusters, which aren't linked from the tree any more (orphans).
+ * <p>
+ * The whole data region (and root directory region of FAT12/FAT16) is read
+ * in one sequential pass, in stripes of STRIPE_SIZE bytes, which are parsed
+ * by pool of threads while next stripes are read. Every cluster is checked
+ * for directory signature: all its 32-byte slots up to the end marker should
+ * be valid short or long name entries (live or deleted). Deleted entries get
+ * their long names back from deleted long name entries before them (with
+ * the same checksum), the first character of short name is restored from
+ * the checksum too.
+ * <p>
+ * Recoverable part of every found file is estimated from the FAT: clusters
+ * of deleted file are freed, so data is assumed to be contiguous from the
+ * first cluster, and it's recoverable while these clusters are still free.
+ * Results are printed in order of stripes, as soon as stripe is parsed.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class RecoveryScanner {
+
+    /**
+     * Size of stripe in bytes (rounded down to clusters)
+     */
+    static final int STRIPE_SIZE = 16 << 20;
+    /**
+     * Characters, which are not allowed in short names
+     */
+    private static final String INVALID_SHORT_CHARS = "\"*+,./:;<=>?[\\]|";
+    private final Fat parent;
+    private final int threads;
+    /**
+     * Allocated clusters (non-zero FAT entries)
+     */
+    private BitSet allocated;
+    /**
+     * Paths of directories of the tree by their clusters
+     */
+    private final HashMap<Long, String> liveDirs = new HashMap<>();
+    private final AtomicLong deletedCount = new AtomicLong();
+    private final AtomicLong orphanCount = new AtomicLong();
+    private final AtomicLong orphanClusters = new AtomicLong();
+
+    /**
+     * Creates scanner
+     *
+     * @param parent Fat instance
+     * @param threads Count of parsing threads
+     */
+    RecoveryScanner(Fat parent, int threads) {
+        this.parent = parent;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Scans the volume, prints found entries to out (TSV with header line or
+     * JSON lines) and summary to System.err
+     *
+     * @param format TreePrinter.FORMAT_JSON for JSON lines, TSV otherwise
+     * @param out Stream to print to
+     * @throws IOException
+     */
+    void scan(int format, PrintStream out) throws IOException {
+        long startTime = System.nanoTime();
+        readAllocation();
+        collectLiveDirs(parent.getRoot(), "");
+        if (format != TreePrinter.FORMAT_JSON) {
+            out.println("kind\tlocation\tname\tshort_name\tattributes\tsize\tcluster\tslot\tstatus\trecoverable");
+        }
+        long scanned = 0;
+        if (parent.type != 32) {
+            long pos = (parent.fatSz * parent.numFATs + parent.rsvdSecCnt) * parent.bytsPerSec;
+            byte[] buffer = new byte[parent.rootDirSectors * parent.bytsPerSec];
+            parent.readAt(pos, buffer, 0, buffer.length);
+            StringBuilder sb = new StringBuilder();
+            parseDirectory(buffer, 0, buffer.length, pos, "/", false, format, sb);
+            out.print(sb);
+            scanned += buffer.length;
+        }
+        scanned += scanData(format, out);
+        out.flush();
+        double time = (System.nanoTime() - startTime) / 1e9;
+        System.err.printf("Scanned: %d MB in %.3f s, %.1f MB/s\n", scanned >> 20, time, scanned / 1e6 / time);
+        System.err.printf("Deleted entries: %d, orphan entries: %d, orphan directory clusters: %d\n",
+                deletedCount.get(), orphanCount.get(), orphanClusters.get());
+    }
+
+    /**
+     * Reads FAT in one pass and marks allocated clusters
+     */
+    private void readAllocation() throws IOException {
+        int count = (int) (parent.countOfClusters + 2);
+        allocated = new BitSet(count);
+        FatTable table = parent.getFatTable();
+        if (table != null && table.isResident()) {
+            for (int clus = 0; clus < count; clus++) {
+                if (table.get(clus) != 0) {
+                    allocated.set(clus);
+                }
+            }
+            return;
+        }
+        int[] values = new int[FatTable.DECODE_BLOCK_ENTRIES];
+        for (int from = 0; from < count; from += values.length) {
+            int entries = Math.min(values.length, count - from);
+            FatTable.decode(parent, from, entries, values, 0);
+            for (int i = 0; i < entries; i++) {
+                if (values[i] != 0) {
+                    allocated.set(from + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the tree and remembers clusters of its directories
+     */
+    private void collectLiveDirs(DirectoryEntry dir, String path) throws IOException {
+        if (!dir.isRootDir || parent.type == 32) {
+            ClusterChain chain = dir.getChain();
+            for (int i = 0; i < chain.size(); i++) {
+                for (long j = 0; j < chain.getLength(i); j++) {
+                    liveDirs.put(chain.getStart(i) + j, path.isEmpty() ? "/" : path);
+                }
+            }
+        }
+        for (DirectoryEntry child : dir.getRealChildren()) {
+            if (child.isDir()) {
+                collectLiveDirs(child, path + "/" + child.getName());
+            }
+        }
+    }
+
+    /**
+     * Reads data region by stripes, parses them by workers and prints results
+     * in order of stripes
+     *
+     * @return Count of scanned bytes
+     */
+    private long scanData(final int format, PrintStream out) throws IOException {
+        final int clusterSize = parent.bytsPerClus;
+        final int stripeSize = Math.max(1, STRIPE_SIZE / clusterSize) * clusterSize;
+        long dataStart = parent.getClusPos(2);
+        long dataEnd = dataStart + parent.countOfClusters * parent.bytsPerClus;
+        final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(threads * 2 + 1);
+        for (int i = 0; i < threads * 2 + 1; i++) {
+            pool.add(new byte[stripeSize]);
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fat-recovery-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        long scanned = 0;
+        try {
+            for (long pos = dataStart; pos < dataEnd; pos += stripeSize) {
+                final byte[] buffer = take(pool);
+                final int length = (int) Math.min(stripeSize, dataEnd - pos);
+                final long stripePos = pos;
+                parent.readAt(pos, buffer, 0, length);
+                scanned += length;
+                pending.add(workers.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            return parseStripe(buffer, length, stripePos, format);
+                        } finally {
+                            pool.add(buffer);
+                        }
+                    }
+                }));
+                while (pending.size() > threads * 2 || !pending.isEmpty() && pending.peek().isDone()) {
+                    out.print(get(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.print(get(pending.poll()));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return scanned;
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> pool) throws IOException {
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static String get(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Parses clusters of stripe, which look like directory ones
+     *
+     * @return Formatted results
+     */
+    private String parseStripe(byte[] buffer, int length, long stripePos, int format) {
+        StringBuilder sb = new StringBuilder();
+        int clusterSize = parent.bytsPerClus;
+        long firstClus = parent.getClusOfSec(stripePos / parent.bytsPerSec);
+        for (int offset = 0; offset + clusterSize <= length; offset += clusterSize) {
+            if (!isDirectoryCluster(buffer, offset, clusterSize)) {
+                continue;
+            }
+            long clus = firstClus + offset / clusterSize;
+            String path = liveDirs.get(clus);
+            boolean orphan = path == null;
+            if (orphan) {
+                orphanClusters.incrementAndGet();
+                path = "cluster " + clus;
+            }
+            parseDirectory(buffer, offset, clusterSize, stripePos + offset, path, orphan, format, sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks directory signature of cluster: all slots up to the end marker
+     * are valid entries, there is at least one short entry
+     */
+    private boolean isDirectoryCluster(byte[] buffer, int offset, int length) {
+        boolean found = false;
+        for (int slot = offset; slot < offset + length; slot += DirectoryParser.ENTRY_SIZE) {
+            if (buffer[slot] == 0) {
+                break;
+            }
+            int attributes = buffer[slot + 11] & 0xFF;
+            if ((attributes & DirectoryEntry.ATTR_LONG_NAME) == DirectoryEntry.ATTR_LONG_NAME) {
+                if (attributes != DirectoryEntry.ATTR_LONG_NAME || buffer[slot + 12] != 0
+                        || buffer[slot + 26] != 0 || buffer[slot + 27] != 0) {
+                    return false;
+                }
+            } else if (isValidShortEntry(buffer, slot)) {
+                found = true;
+            } else {
+                return false;
+            }
+        }
+        return found;
+    }
+
+    private boolean isValidShortEntry(byte[] buffer, int slot) {
+        int attributes = buffer[slot + 11] & 0xFF;
+        if ((attributes & 0xC0) != 0 || (buffer[slot + 12] & ~0x18) != 0) {
+            return false;
+        }
+        if (buffer[slot] == '.') {
+            //"." and ".." entries
+            for (int i = buffer[slot + 1] == '.' ? 2 : 1; i < 11; i++) {
+                if (buffer[slot + i] != ' ') {
+                    return false;
+                }
+            }
+        } else {
+            int first = buffer[slot] & 0xFF;
+            if (first == ' ' || first != 0xE5 && first != 0x05 && !isValidShortChar(first)) {
+                return false;
+            }
+            for (int i = 1; i < 11; i++) {
+                if (!isValidShortChar(buffer[slot + i] & 0xFF)) {
+                    return false;
+                }
+            }
+        }
+        long clus = (Fat.getUnsignedIntFromBytes(buffer, slot + 20, 2) << 16) | Fat.getUnsignedIntFromBytes(buffer, slot + 26, 2);
+        if (clus != 0 && !parent.isValidClus(clus)) {
+            return false;
+        }
+        return isValidDate(buffer, slot + 16) && isValidDate(buffer, slot + 24) && isValidTime(buffer, slot + 22);
+    }
+
+    private static boolean isValidShortChar(int c) {
+        return c >= 0x20 && (c < 'a' || c > 'z') && c != 0x7F && INVALID_SHORT_CHARS.indexOf(c) < 0;
+    }
+
+    private static boolean isValidDate(byte[] buffer, int offset) {
+        int date = (int) Fat.getUnsignedIntFromBytes(buffer, offset, 2);
+        if (date == 0) {
+            return true;
+        }
+        int month = (date >> 5) & 0x0F;
+        int day = date & 0x1F;
+        return month >= 1 && month <= 12 && day >= 1;
+    }
+
+    private static boolean isValidTime(byte[] buffer, int offset) {
+        int time = (int) Fat.getUnsignedIntFromBytes(buffer, offset, 2);
+        return (time >> 11) < 24 && ((time >> 5) & 0x3F) < 60 && (time & 0x1F) < 30;
+    }
+
+    /**
+     * Reports deleted entries of directory (and all entries, if directory is
+     * orphan)
+     *
+     * @param buffer Array with directory slots
+     * @param offset Offset of the first slot
+     * @param length Count of bytes
+     * @param pos Position of the first slot in the volume
+     * @param location Path of directory or "cluster N" for orphans
+     * @param orphan Whether directory isn't linked from the tree
+     */
+    private void parseDirectory(byte[] buffer, int offset, int length, long pos, String location, boolean orphan,
+            int format, StringBuilder sb) {
+        int first = offset / DirectoryParser.ENTRY_SIZE;
+        int end = (offset + length) / DirectoryParser.ENTRY_SIZE;
+        for (int index = first; index < end; index++) {
+            int slot = index * DirectoryParser.ENTRY_SIZE;
+            if (buffer[slot] == 0) {
+                break;
+            }
+            int attributes = buffer[slot + 11] & 0xFF;
+            if ((attributes & DirectoryEntry.ATTR_LONG_NAME) == DirectoryEntry.ATTR_LONG_NAME || buffer[slot] == '.') {
+                continue;
+            }
+            boolean deleted = buffer[slot] == (byte) 0xE5;
+            if (!deleted && !orphan || (attributes & DirectoryEntry.ATTR_VOLUME_ID) != 0) {
+                continue;
+            }
+            byte[] raw = new byte[DirectoryParser.ENTRY_SIZE];
+            System.arraycopy(buffer, slot, raw, 0, raw.length);
+            if (!deleted && raw[0] == 0x05) {
+                raw[0] = (byte) 0xE5;
+            }
+            String longName = readLongName(buffer, slot, first * DirectoryParser.ENTRY_SIZE, raw, deleted);
+            DirectoryEntry entry = new DirectoryEntry(parent);
+            entry.longName = longName;
+            entry.readGeneralEntry(raw, 0);
+            if (deleted) {
+                deletedCount.incrementAndGet();
+            } else {
+                orphanCount.incrementAndGet();
+            }
+            print(entry, deleted ? "deleted" : "orphan", location, pos + slot - offset, format, sb);
+        }
+    }
+
+    /**
+     * Collects long name from long name entries before short entry (in
+     * reverse order, with the same checksum). For deleted entry, the first
+     * character of short name is restored in raw: it's chosen so, that the
+     * checksum matches (the first character of long name is preferred), '_'
+     * is used if there is no long name.
+     *
+     * @return Long name, empty string if there are no long name entries
+     */
+    private static String readLongName(byte[] buffer, int slot, int start, byte[] raw, boolean deleted) {
+        int prev = slot - DirectoryParser.ENTRY_SIZE;
+        boolean hasLongName = prev >= start
+                && (buffer[prev + 11] & 0xFF) == DirectoryEntry.ATTR_LONG_NAME
+                && (buffer[prev] == (byte) 0xE5) == deleted;
+        int checksum = hasLongName ? buffer[prev + 13] & 0xFF : -1;
+        StringBuilder name = new StringBuilder();
+        if (hasLongName) {
+            for (int k = prev, ord = 0; k >= start && ord < DirectoryParser.LN_MAX_ORD; k -= DirectoryParser.ENTRY_SIZE, ord++) {
+                if ((buffer[k + 11] & 0xFF) != DirectoryEntry.ATTR_LONG_NAME || (buffer[k + 13] & 0xFF) != checksum
+                        || (buffer[k] == (byte) 0xE5) != deleted) {
+                    break;
+                }
+                boolean last = false;
+                for (int i = 0; i < DirectoryParser.LN_ENTRY_CHARS && !last; i++) {
+                    int p = k + DirectoryParser.LN_CHAR_OFFSETS[i];
+                    char c = (char) ((buffer[p] & 0xFF) | ((buffer[p + 1] & 0xFF) << 8));
+                    if (c == 0 || c == 0xFFFF) {
+                        last = true;
+                    } else {
+                        name.append(c);
+                    }
+                }
+                if (!deleted && (buffer[k] & 0x40) != 0) {
+                    break;
+                }
+            }
+        }
+        if (deleted) {
+            raw[0] = '_';
+            if (checksum >= 0) {
+                char preferred = name.length() > 0 ? Character.toUpperCase(name.charAt(0)) : '_';
+                if (preferred < 0x80 && checksum(raw, preferred) == checksum) {
+                    raw[0] = (byte) preferred;
+                } else {
+                    for (int c = 0x21; c < 0x100; c++) {
+                        if (isValidShortChar(c) && checksum(raw, c) == checksum) {
+                            raw[0] = (byte) c;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        if (checksum >= 0 && !deleted && checksum(raw, raw[0] & 0xFF) != checksum) {
+            return "";
+        }
+        return name.toString();
+    }
+
+    /**
+     * Checksum of short name (stored in long name entries)
+     *
+     * @param raw Short entry
+     * @param first The first character of name
+     */
+    private static int checksum(byte[] raw, int first) {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) {
+            int c = i == 0 ? first : raw[i] & 0xFF;
+            sum = (((sum & 1) << 7) + (sum >> 1) + c) & 0xFF;
+        }
+        return sum;
+    }
+
+    private void print(DirectoryEntry entry, String kind, String location, long slotPos, int format, StringBuilder sb) {
+        long size = entry.isDir() ? 0 : entry.getFileSize();
+        long clus = entry.dataClus;
+        String status;
+        long recoverable = 0;
+        if (!entry.isDir() && size == 0) {
+            status = "empty";
+        } else if (!parent.isValidClus(clus)) {
+            status = "no_data";
+        } else if (allocated.get((int) clus)) {
+            //Deleted file's clusters are freed, allocated ones belong to others
+            status = kind.equals("deleted") ? "overwritten" : "allocated";
+            if (!kind.equals("deleted")) {
+                recoverable = size;
+            }
+        } else {
+            long needed = entry.isDir() ? 1 : (size + parent.bytsPerClus - 1) / parent.bytsPerClus;
+            long free = 0;
+            while (free < needed && parent.isValidClus(clus + free) && !allocated.get((int) (clus + free))) {
+                free++;
+            }
+            status = free == needed ? "recoverable" : "partial";
+            recoverable = entry.isDir() ? 0 : Math.min(size, free * parent.bytsPerClus);
+        }
+        String name = entry.longName != null && !entry.longName.isEmpty() ? entry.longName : DirectoryEntry.getDottedName(entry.getShortName());
+        String shortName = DirectoryEntry.getDottedName(entry.getShortName());
+        if (format == TreePrinter.FORMAT_JSON) {
+            sb.append("{\"kind\":\"").append(kind).append("\",\"location\":");
+            TreePrinter.appendJsonString(sb, location);
+            sb.append(",\"name\":");
+            TreePrinter.appendJsonString(sb, name);
+            sb.append(",\"short_name\":");
+            TreePrinter.appendJsonString(sb, shortName);
+            sb.append(",\"dir\":").append(entry.isDir());
+            sb.append(",\"attributes\":").append(entry.getAttributes());
+            sb.append(",\"size\":").append(size);
+            sb.append(",\"cluster\":").append(clus);
+            sb.append(",\"slot\":").append(slotPos);
+            sb.append(",\"status\":\"").append(status).append('"');
+            sb.append(",\"recoverable\":").append(recoverable).append("}\n");
+        } else {
+            sb.append(kind).append('\t');
+            TreePrinter.appendTsvField(sb, location);
+            sb.append('\t');
+            TreePrinter.appendTsvField(sb, name);
+            sb.append('\t');
+            TreePrinter.appendTsvField(sb, shortName);
+            sb.append('\t').append(entry.getAttributes());
+            sb.append('\t').append(size);
+            sb.append('\t').append(clus);
+            sb.append('\t').append(slotPos);
+            sb.append('\t').append(status);
+            sb.append('\t').append(recoverable).append('\n');
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package fatmaster;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Daemon mode: keeps volumes open (with warm FAT table and directory tree)
+ * and serves requests from stdin, one per line, with a fixed pool of worker
+ * threads. Request is "ID COMMAND ARGS...", fields are separated by tabs (or
+ * by spaces, if line has no tabs):
+ * <pre>
+ * ID open VOLUME FILE          - open FILE as VOLUME (volume of "-f" is "default")
+ * ID close VOLUME              - close VOLUME
+ * ID info VOLUME [PATH [DEPTH [FORMAT]]]
+ * ID list VOLUME [PATH [DEPTH [FORMAT]]]
+ * ID print VOLUME PATH [OFFSET [LENGTH]]
+ * ID save VOLUME PATH DEST
+ * ID stat VOLUME PATH
+ * ID find VOLUME [PATH] [CRITERIA...]
+ * ID metrics                   - latency of requests by commands
+ * ID quit                      - finish pending requests and exit
+ * </pre>
+ * Response is "ID OK LENGTH MICROS" line, followed by LENGTH bytes of result,
+ * or "ID ERROR MESSAGE" line (fields are separated by tabs). Responses are
+ * written in the order of completion, result of every request is written at
+ * once. Result is kept in memory until then, so results larger than
+ * MAX_RESULT_SIZE are answered with error. Every request gets response, even
+ * if its execution fails with error (e.g. OutOfMemoryError).
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class Server {
+
+    /**
+     * Name of volume, opened with "-f"
+     */
+    public static final String DEFAULT_VOLUME = "default";
+    /**
+     * Count of requests, waiting for a worker, per worker thread (reading of
+     * stdin is blocked, when there are more)
+     */
+    static final int QUEUE_PER_THREAD = 4;
+    /**
+     * Count of latency histogram buckets (bucket i counts requests, which took
+     * less than 2^i microseconds)
+     */
+    static final int BUCKETS = 40;
+    /**
+     * Maximum size of result of one request in bytes
+     */
+    static final int MAX_RESULT_SIZE = 64 << 20;
+    /**
+     * Opened volumes by names
+     */
+    private final ConcurrentHashMap<String, OpenVolume> volumes = new ConcurrentHashMap<>();
+    /**
+     * Settings of opened volumes
+     */
+    private final long fatCacheLimit;
+    private final long blockCacheLimit;
+    private final int pipelineDepth;
+    private final int pipelineBufferSize;
+    private final boolean useIndex;
+    /**
+     * Worker threads
+     */
+    private final ExecutorService workers;
+    /**
+     * Limits count of accepted, but not finished requests
+     */
+    private final Semaphore pending;
+    private final OutputStream out;
+    /**
+     * Whether latency of every request is logged to stderr
+     */
+    private final boolean logLatency;
+    /**
+     * Latency metrics by commands
+     */
+    private final ConcurrentHashMap<String, Metrics> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * Creates server
+     *
+     * @param threads Count of worker threads (maximum count of concurrently
+     * executed requests)
+     * @param fatCacheLimit FAT cache limit of opened volumes (see
+     * Fat.setFatCacheLimit())
+     * @param blockCacheLimit Block cache limit of opened volumes (see
+     * Fat.setBlockCacheLimit())
+     * @param pipelineDepth Read pipeline depth (see Fat.setReadPipeline())
+     * @param pipelineBufferSize Read pipeline buffer size
+     * @param useIndex Whether to use sidecar index FILE.fmidx of opened
+     * volumes
+     * @param logLatency Whether to log latency of every request to stderr
+     */
+    public Server(int threads, long fatCacheLimit, long blockCacheLimit, int pipelineDepth, int pipelineBufferSize,
+            boolean useIndex, boolean logLatency) {
+        this.fatCacheLimit = fatCacheLimit;
+        this.blockCacheLimit = blockCacheLimit;
+        this.pipelineDepth = pipelineDepth;
+        this.pipelineBufferSize = pipelineBufferSize;
+        this.useIndex = useIndex;
+        this.logLatency = logLatency;
+        threads = Math.max(1, threads);
+        final AtomicInteger counter = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fat-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pending = new Semaphore(threads * (QUEUE_PER_THREAD + 1));
+        out = new BufferedOutputStream(System.out, 1 << 16);
+    }
+
+    /**
+     * Adds already opened volume
+     *
+     * @param name Name of volume
+     * @param fat Opened volume
+     * @throws IOException
+     */
+    public void addVolume(String name, Fat fat) throws IOException {
+        OpenVolume old = volumes.put(name, new OpenVolume(fat));
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Opens volume and warms it up: reads root directory and FAT table (if
+     * it's cached)
+     *
+     * @param name Name of volume
+     * @param file Volume image
+     * @throws IOException
+     */
+    public void openVolume(String name, String file) throws IOException {
+        Fat fat = new Fat();
+        fat.setFatCacheLimit(fatCacheLimit);
+        fat.setBlockCacheLimit(blockCacheLimit);
+        fat.setReadPipeline(pipelineDepth, pipelineBufferSize);
+        if (useIndex) {
+            fat.setIndexFile(new File(file + ".fmidx"));
+        }
+        fat.open(new File(file));
+        fat.getRoot();
+        fat.getFatTable();
+        OpenVolume old = volumes.put(name, new OpenVolume(fat));
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Reads requests from stdin and executes them, until "quit" or end of
+     * input. Then waits for pending requests and closes volumes.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final String[] fields = CommandRunner.split(line);
+            if (fields.length < 2) {
+                respondError(fields[0], "Command isn't specified");
+                continue;
+            }
+            if (fields[1].equals("quit")) {
+                break;
+            }
+            pending.acquireUninterruptibly();
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(fields);
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (OpenVolume volume : volumes.values()) {
+            volume.close();
+        }
+        volumes.clear();
+        out.flush();
+    }
+
+    /**
+     * Executes request and writes response
+     *
+     * @param fields ID, command and arguments
+     */
+    private void handle(String[] fields) {
+        String id = fields[0];
+        String command = fields[1];
+        long startTime = System.nanoTime();
+        ResultBuffer result = new ResultBuffer();
+        String error = null;
+        try {
+            switch (command) {
+                case "open":
+                    checkFields(fields, 4);
+                    openVolume(fields[2], fields[3]);
+                    break;
+                case "close": {
+                    checkFields(fields, 3);
+                    OpenVolume volume = volumes.remove(fields[2]);
+                    if (volume == null) {
+                        throw new IllegalArgumentException("No such volume: " + fields[2]);
+                    }
+                    volume.close();
+                    break;
+                }
+                case "metrics":
+                    printMetrics(new PrintStream(result, true));
+                    break;
+                default: {
+                    if (!CommandRunner.isCommand(command)) {
+                        throw new IllegalArgumentException("Unknown command: " + command);
+                    }
+                    checkFields(fields, 3);
+                    OpenVolume volume = volumes.get(fields[2]);
+                    String[] args = new String[fields.length - 2];
+                    args[0] = command;
+                    System.arraycopy(fields, 3, args, 1, fields.length - 3);
+                    //Volume isn't closed, while request is executed on it
+                    if (volume == null || !volume.acquire()) {
+                        throw new IllegalArgumentException("No such volume: " + fields[2]);
+                    }
+                    try {
+                        CommandRunner.execute(volume.fat, args, result);
+                    } finally {
+                        volume.release();
+                    }
+                }
+            }
+            if (result.overflow) {
+                //PrintStream swallows exception of ResultBuffer
+                throw new IOException(ResultBuffer.OVERFLOW_MESSAGE);
+            }
+        } catch (Throwable e) {
+            //Result may be the cause of OutOfMemoryError, it's dropped before response
+            result = null;
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        long micros = (System.nanoTime() - startTime) / 1000;
+        getMetrics(command).add(micros, error != null);
+        if (logLatency) {
+            System.err.printf("%s\t%s\t%d us\n", id, command, micros);
+        }
+        if (error != null) {
+            respondError(id, error);
+        } else {
+            respond(id, result, micros);
+        }
+    }
+
+    private static void checkFields(String[] fields, int count) {
+        if (fields.length < count) {
+            throw new IllegalArgumentException("Not enough arguments for " + fields[1]);
+        }
+    }
+
+    private void respond(String id, ResultBuffer result, long micros) {
+        byte[] header = (id + "\tOK\t" + result.size() + "\t" + micros + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            try {
+                out.write(header);
+                result.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Can't write response: " + e.getMessage());
+            }
+        }
+    }
+
+    private void respondError(String id, String message) {
+        byte[] line = (id + "\tERROR\t" + message.replace('\n', ' ').replace('\t', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            try {
+                out.write(line);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Can't write response: " + e.getMessage());
+            }
+        }
+    }
+
+    private Metrics getMetrics(String command) {
+        Metrics m = metrics.get(command);
+        if (m == null) {
+            Metrics created = new Metrics();
+            m = metrics.putIfAbsent(command, created);
+            if (m == null) {
+                m = created;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Prints metrics of every command: count of requests and errors, mean,
+     * median, 99th percentile and maximum of latency in microseconds
+     * (percentiles are upper bounds of histogram buckets)
+     */
+    void printMetrics(PrintStream ps) {
+        ps.println("command\tcount\terrors\tmean_us\tp50_us\tp99_us\tmax_us");
+        for (Map.Entry<String, Metrics> entry : new TreeMap<>(metrics).entrySet()) {
+            Metrics m = entry.getValue();
+            long count = m.count.sum();
+            ps.printf("%s\t%d\t%d\t%d\t%d\t%d\t%d\n", entry.getKey(), count, m.errors.sum(),
+                    count == 0 ? 0 : m.totalMicros.sum() / count, m.getPercentile(0.5), m.getPercentile(0.99), m.maxMicros.get());
+        }
+    }
+
+    /**
+     * Opened volume: requests are executed on it under read lock, it's closed
+     * under write lock, so it's closed after requests, which are already
+     * executed on it
+     */
+    private static class OpenVolume {
+
+        final Fat fat;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean closed = false;
+
+        OpenVolume(Fat fat) {
+            this.fat = fat;
+        }
+
+        /**
+         * Starts request on volume
+         *
+         * @return false if volume is already closed
+         */
+        boolean acquire() {
+            lock.readLock().lock();
+            if (closed) {
+                lock.readLock().unlock();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            lock.readLock().unlock();
+        }
+
+        /**
+         * Waits for requests on volume and closes it
+         */
+        void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    fat.close();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Result of request, writes beyond MAX_RESULT_SIZE fail with IOException
+     */
+    private static class ResultBuffer extends OutputStream {
+
+        static final String OVERFLOW_MESSAGE = "Result is larger than " + MAX_RESULT_SIZE
+                + " bytes, print it by ranges or save it";
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        /**
+         * Whether result was exceeded
+         */
+        boolean overflow = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            data.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            data.write(b, off, len);
+        }
+
+        private void check(int len) throws IOException {
+            if (overflow || len > MAX_RESULT_SIZE - data.size()) {
+                overflow = true;
+                throw new IOException(OVERFLOW_MESSAGE);
+            }
+        }
+
+        int size() {
+            return data.size();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            data.writeTo(out);
+        }
+    }
+
+    /**
+     * Latency metrics of one command
+     */
+    private static class Metrics {
+
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final LongAccumulator maxMicros = new LongAccumulator(new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long left, long right) {
+                return Math.max(left, right);
+            }
+        }, 0);
+        final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        Metrics() {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void add(long micros, boolean error) {
+            count.increment();
+            if (error) {
+                errors.increment();
+            }
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+            histogram[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        }
+
+        long getPercentile(double p) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package fatmaster;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Process-wide counters of I/O and hot paths, and timing of phases (open,
+ * free space scan, tree build, output). Counters are LongAdders, so
+ * concurrent updates from extraction threads don't contend. Every finished
+ * phase is also emitted as JFR event "fatmaster.Phase" (with counter values
+ * at its end), if it's enabled in the running recording.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public final class Stats {
+
+    /**
+     * Reads of the volume, which don't continue the previous one
+     */
+    public static final int SEEKS = 0;
+    /**
+     * Reads of the volume (cache hits aren't counted, transferTo() is
+     * counted as one read)
+     */
+    public static final int READ_CALLS = 1;
+    /**
+     * Bytes, read from the volume
+     */
+    public static final int BYTES_READ = 2;
+    /**
+     * Calls of getNextClus()
+     */
+    public static final int CLUSTERS_FOLLOWED = 3;
+    /**
+     * 32-byte directory slots, parsed from directory clusters
+     */
+    public static final int DIR_SLOTS = 4;
+    /**
+     * Created DirectoryEntry instances
+     */
+    public static final int ENTRIES = 5;
+    /**
+     * Bytes of files, written by extraction (or printing)
+     */
+    public static final int BYTES_WRITTEN = 6;
+    /**
+     * Sum of distances (in bytes) between the end of previous read of the
+     * volume and the start of the next one
+     */
+    public static final int SEEK_DISTANCE = 7;
+    public static final int PHASE_OPEN = 0;
+    public static final int PHASE_FREE_SPACE = 1;
+    /**
+     * Reading of directories (from the volume or from index)
+     */
+    public static final int PHASE_TREE = 2;
+    /**
+     * Printing and extraction (includes tree build of directories, read on
+     * the way)
+     */
+    public static final int PHASE_OUTPUT = 3;
+    /**
+     * Sequential scan of the whole volume (recovery scan)
+     */
+    public static final int PHASE_SCAN = 4;
+    static final String[] COUNTER_NAMES = {"Seeks", "Read calls", "Bytes read", "Clusters followed",
+        "Directory slots parsed", "Entries allocated", "Bytes written", "Seek distance"};
+    static final String[] PHASE_NAMES = {"open", "free space", "tree build", "output", "volume scan"};
+    private static final LongAdder[] counters = newAdders(COUNTER_NAMES.length);
+    private static final LongAdder[] phaseNanos = newAdders(PHASE_NAMES.length);
+    private static final LongAdder[] phaseCalls = newAdders(PHASE_NAMES.length);
+
+    private Stats() {
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static void increment(int counter) {
+        counters[counter].increment();
+    }
+
+    static void add(int counter, long value) {
+        counters[counter].add(value);
+    }
+
+    /**
+     * Current value of counter
+     *
+     * @param counter One of counter constants (SEEKS, READ_CALLS, ...)
+     * @return Value of counter
+     */
+    public static long get(int counter) {
+        return counters[counter].sum();
+    }
+
+    /**
+     * Total time, spent in phase
+     *
+     * @param phase One of PHASE_* constants
+     * @return Time in nanoseconds
+     */
+    public static long getPhaseNanos(int phase) {
+        return phaseNanos[phase].sum();
+    }
+
+    /**
+     * Count of finished phases of given kind
+     *
+     * @param phase One of PHASE_* constants
+     * @return Count of phases
+     */
+    public static long getPhaseCalls(int phase) {
+        return phaseCalls[phase].sum();
+    }
+
+    /**
+     * Resets all the counters and timings
+     */
+    public static void reset() {
+        for (LongAdder adder : counters) {
+            adder.reset();
+        }
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            phaseNanos[i].reset();
+            phaseCalls[i].reset();
+        }
+    }
+
+    /**
+     * Starts phase
+     *
+     * @param phase One of PHASE_* constants
+     * @return Event, which should be passed to end()
+     */
+    static PhaseEvent begin(int phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phaseId = phase;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes phase, adds it's time and commits JFR event
+     *
+     * @param event Event, returned by begin()
+     */
+    static void end(PhaseEvent event) {
+        event.end();
+        phaseNanos[event.phaseId].add(System.nanoTime() - event.startNanos);
+        phaseCalls[event.phaseId].increment();
+        if (event.shouldCommit()) {
+            event.phase = PHASE_NAMES[event.phaseId];
+            event.seeks = get(SEEKS);
+            event.readCalls = get(READ_CALLS);
+            event.bytesRead = get(BYTES_READ);
+            event.clustersFollowed = get(CLUSTERS_FOLLOWED);
+            event.directorySlots = get(DIR_SLOTS);
+            event.entries = get(ENTRIES);
+            event.bytesWritten = get(BYTES_WRITTEN);
+            event.seekDistance = get(SEEK_DISTANCE);
+            event.commit();
+        }
+    }
+
+    /**
+     * Prints counters and timings of phases
+     *
+     * @param out Stream to print to
+     */
+    public static void print(PrintStream out) {
+        out.println("======= Statistics =======");
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            out.printf("%s: %d\n", COUNTER_NAMES[i], get(i));
+        }
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            out.printf("Phase %s: %d calls, %.3f ms\n", PHASE_NAMES[i], getPhaseCalls(i), getPhaseNanos(i) / 1e6);
+        }
+    }
+
+    /**
+     * JFR event of finished phase, counters are process totals at the end of
+     * phase
+     */
+    @Name("fatmaster.Phase")
+    @Label("FAT Phase")
+    @Category("FAT Master")
+    @Description("Phase of FAT volume processing: open, free space, tree build, output or volume scan")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+
+        transient int phaseId;
+        transient long startNanos;
+        @Label("Phase")
+        String phase;
+        @Label("Seeks")
+        long seeks;
+        @Label("Read Calls")
+        long readCalls;
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        @Label("Clusters Followed")
+        long clustersFollowed;
+        @Label("Directory Slots Parsed")
+        long directorySlots;
+        @Label("Entries Allocated")
+        long entries;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+        @Label("Seek Distance")
+        @DataAmount
+        long seekDistance;
+    }
+}
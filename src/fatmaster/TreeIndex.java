@@ -0,0 +1,288 @@
+package fatmaster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar index of the volume: binary snapshot of the whole directory tree
+ * (raw entries, long names and extents of files), stored in a file next to
+ * the image. Index is keyed by volume serial number, geometry and checksum of
+ * the FAT region, it's memory-mapped and children of directories are read
+ * from it instead of the volume.
+ *
+ * File layout: header (HEADER_SIZE bytes), then directory blocks. Block is
+ * the count of children (int) and children records: raw entry (32 bytes),
+ * length of long name (short), characters of long name, offset of
+ * directory's own block (long, -1 if it has no block), count of extents
+ * (int) and extents (pairs of longs: start cluster, length). Blocks are
+ * written children first, so the root block is the last one.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+class TreeIndex {
+
+    /**
+     * "FMIDX001", first bytes of index file
+     */
+    static final long MAGIC = 0x464D494458303031L;
+    /**
+     * Size of header in bytes
+     */
+    static final int HEADER_SIZE = 80;
+    /**
+     * Position of the root block offset in header
+     */
+    static final int ROOT_BLOCK_POS = 72;
+    /**
+     * Size of buffer, used to write the index file and to checksum the FAT
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+    /**
+     * Fat parent instance
+     */
+    private final Fat parent;
+    /**
+     * Mapped index file
+     */
+    private final MappedByteBuffer buffer;
+
+    private TreeIndex(Fat parent, MappedByteBuffer buffer) {
+        this.parent = parent;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Attaches index to the root directory. If index file doesn't exist or
+     * doesn't match the volume, whole tree is read from the volume and index
+     * is rebuilt.
+     *
+     * @param fat Fat instance
+     * @param root Root directory of fat
+     * @param file Index file
+     * @return TreeIndex instance, null if index was rebuilt (tree is in memory
+     * then)
+     * @throws IOException
+     */
+    static TreeIndex attach(Fat fat, DirectoryEntry root, File file) throws IOException {
+        byte[] header = createHeader(fat);
+        if (file.isFile() && file.length() >= HEADER_SIZE && file.length() <= Integer.MAX_VALUE) {
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            boolean matches = true;
+            for (int i = 0; i < ROOT_BLOCK_POS && matches; i++) {
+                matches = buffer.get(i) == header[i];
+            }
+            if (matches) {
+                root.indexOffset = buffer.getLong(ROOT_BLOCK_POS);
+                return new TreeIndex(fat, buffer);
+            }
+        }
+        write(fat, root, file, header);
+        return null;
+    }
+
+    /**
+     * Creates index header for volume (with zero root block offset)
+     *
+     * @param fat Fat instance
+     * @return Bytes of header
+     * @throws IOException
+     */
+    private static byte[] createHeader(Fat fat) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC);
+        header.putLong(fat.bootSector.getVolID(fat.type));
+        header.putInt(fat.bytsPerSec);
+        header.putInt(fat.secPerClus);
+        header.putInt(fat.rsvdSecCnt);
+        header.putInt(fat.numFATs);
+        header.putInt(fat.rootDirSectors);
+        header.putInt(fat.type);
+        header.putLong(fat.fatSz);
+        header.putLong(fat.totSec);
+        header.putLong(fat.type == 32 ? fat.bootSector.getRootClus() : 0);
+        header.putLong(checksum(fat));
+        return header.array();
+    }
+
+    /**
+     * Computes CRC32 of the primary FAT (and of the root directory region for
+     * FAT12/FAT16, as it isn't covered by FAT)
+     *
+     * @param fat Fat instance
+     * @return Checksum value
+     * @throws IOException
+     */
+    static long checksum(Fat fat) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[BUFFER_SIZE];
+        long pos = (long) fat.rsvdSecCnt * fat.bytsPerSec;
+        long count = fat.fatSz * fat.bytsPerSec;
+        while (count > 0) {
+            int len = (int) Math.min(count, block.length);
+            fat.readAt(pos, block, 0, len);
+            crc.update(block, 0, len);
+            pos += len;
+            count -= len;
+        }
+        if (fat.type != 32) {
+            pos = (fat.rsvdSecCnt + fat.numFATs * fat.fatSz) * fat.bytsPerSec;
+            byte[] rootRegion = new byte[fat.rootDirSectors * fat.bytsPerSec];
+            fat.readAt(pos, rootRegion, 0, rootRegion.length);
+            crc.update(rootRegion, 0, rootRegion.length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the whole tree from volume and writes it to the index file
+     *
+     * @param fat Fat instance
+     * @param root Root directory
+     * @param file Index file
+     * @param header Bytes of header
+     * @throws IOException
+     */
+    private static void write(Fat fat, DirectoryEntry root, File file, byte[] header) throws IOException {
+        //Temporary file is unique, so concurrent writers don't mix their data,
+        //and it's in the same directory, so it's renamed atomically (prefix
+        //is at least 3 characters long, as createTempFile requires)
+        File tmp = File.createTempFile(file.getName() + ".tmp", "", file.getAbsoluteFile().getParentFile());
+        try {
+            long rootBlock;
+            try (Writer writer = new Writer(tmp)) {
+                //Header is written at the end, so incomplete file never matches
+                writer.out.write(new byte[HEADER_SIZE]);
+                rootBlock = writer.writeBlock(root);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                ByteBuffer.wrap(header).putLong(ROOT_BLOCK_POS, rootBlock);
+                raf.write(header);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            //Nothing is left, if index wasn't written (tmp is moved otherwise)
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads children of directory from the index
+     *
+     * @param dir Directory
+     * @throws IOException
+     */
+    void readChildren(DirectoryEntry dir) throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        in.position((int) dir.indexOffset);
+        int count = in.getInt();
+        byte[] raw = new byte[DirectoryParser.ENTRY_SIZE];
+        char[] name = new char[DirectoryParser.LN_MAX_ORD * DirectoryParser.LN_ENTRY_CHARS];
+        for (int i = 0; i < count; i++) {
+            in.get(raw);
+            int nameLength = in.getShort();
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = in.getChar();
+            }
+            DirectoryEntry child = new DirectoryEntry(parent);
+            child.longName = nameLength == 0 ? "" : new String(name, 0, nameLength);
+            child.readGeneralEntry(raw, 0);
+            child.indexOffset = in.getLong();
+            int extents = in.getInt();
+            if (extents > 0) {
+                long[] starts = new long[extents];
+                long[] lengths = new long[extents];
+                for (int j = 0; j < extents; j++) {
+                    starts[j] = in.getLong();
+                    lengths[j] = in.getLong();
+                }
+                child.chain = ClusterChain.create(starts, lengths);
+            }
+            dir.addChild(child);
+        }
+    }
+
+    /**
+     * Writer of index file
+     */
+    private static class Writer implements AutoCloseable {
+
+        final DataOutputStream out;
+
+        Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * Writes blocks of directory's subtree
+         *
+         * @param dir Directory
+         * @return Offset of dir's block
+         * @throws IOException
+         */
+        long writeBlock(DirectoryEntry dir) throws IOException {
+            dir.retrieveChildren();
+            long[] offsets = new long[dir.children.size()];
+            int i = 0;
+            for (DirectoryEntry child : dir.children.values()) {
+                offsets[i++] = (child.isDir() && !child.isDotEntry()) ? writeBlock(child) : -1;
+            }
+            long offset = out.size();
+            int count = dir.children.size();
+            if (dir.isRootDir && dir.getRaw() != null) {
+                //Volume label, will be passed to root by addChild()
+                count++;
+            }
+            out.writeInt(count);
+            if (count > dir.children.size()) {
+                writeRecord(dir, -1);
+            }
+            i = 0;
+            for (DirectoryEntry child : dir.children.values()) {
+                writeRecord(child, offsets[i++]);
+            }
+            if (out.size() == Integer.MAX_VALUE) {
+                //Index is mapped as one buffer, so it can't be bigger
+                throw new IOException("Index is too big");
+            }
+            return offset;
+        }
+
+        private void writeRecord(DirectoryEntry entry, long blockOffset) throws IOException {
+            out.write(entry.getRaw());
+            String name = entry.longName == null ? "" : entry.longName;
+            out.writeShort(name.length());
+            out.writeChars(name);
+            out.writeLong(blockOffset);
+            if (entry.isDir() || entry.isRootDir) {
+                out.writeInt(0);
+            } else {
+                ClusterChain chain = entry.getChain();
+                out.writeInt(chain.size());
+                for (int i = 0; i < chain.size(); i++) {
+                    out.writeLong(chain.getStart(i));
+                    out.writeLong(chain.getLength(i));
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
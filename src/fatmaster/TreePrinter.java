@@ -0,0 +1,310 @@
+package fatmaster;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Streaming printer of directory tree. Entries are written to one buffered
+ * writer as they are visited, children are read directory by directory and
+ * aren't kept after the directory is printed (unless they were already
+ * retrieved or come from sidecar index), so the whole tree isn't held.
+ * Besides the human readable format, it supports JSON lines (one object per
+ * entry) and TSV (header line, then one line per entry).
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class TreePrinter {
+
+    /**
+     * Human readable format (names, indented by depth)
+     */
+    public static final int FORMAT_TEXT = 0;
+    /**
+     * JSON lines format
+     */
+    public static final int FORMAT_JSON = 1;
+    /**
+     * Tab separated values format
+     */
+    public static final int FORMAT_TSV = 2;
+    /**
+     * Size of output buffer in characters
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Header line of TSV format
+     */
+    static final String TSV_HEADER = "path\tshort_name\tdir\tattributes\tsize\tcluster\tcreated\tmodified\taccessed";
+    private final Writer out;
+    private final int format;
+    /**
+     * Indentation strings, indents[k] consists of k*3 spaces
+     */
+    private String[] indents = new String[0];
+    /**
+     * Whether TSV header was written
+     */
+    private boolean headerWritten = false;
+
+    /**
+     * Creates printer
+     *
+     * @param stream Output stream (it's not closed by printer, only flushed)
+     * @param format One of FORMAT_* constants
+     */
+    public TreePrinter(OutputStream stream, int format) {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream), BUFFER_SIZE);
+        this.format = format;
+    }
+
+    /**
+     * Parses name of format
+     *
+     * @param name "text", "json" or "tsv" (case-insensitive)
+     * @return One of FORMAT_* constants, -1 if name is unknown
+     */
+    public static int parseFormat(String name) {
+        switch (name.toLowerCase()) {
+            case "text":
+                return FORMAT_TEXT;
+            case "json":
+                return FORMAT_JSON;
+            case "tsv":
+                return FORMAT_TSV;
+        }
+        return -1;
+    }
+
+    /**
+     * Prints entry and it's subtree
+     *
+     * @param entry Entry to print
+     * @param path Path of entry from the root directory
+     * @param depth Depth of directory tree to print (0 - only the entry)
+     * @param verbose Whether to print information, or just names of
+     * files/dirs (human readable format only, other formats always contain
+     * all the fields)
+     * @throws IOException
+     */
+    public void print(DirectoryEntry entry, String path, int depth, boolean verbose) throws IOException {
+        if (format == FORMAT_TSV && !headerWritten) {
+            out.write(TSV_HEADER);
+            out.write('\n');
+            headerWritten = true;
+        }
+        print(entry, path, depth, verbose, 0);
+    }
+
+    /**
+     * Prints entry and it's subtree
+     *
+     * @param entry Entry to print
+     * @param path Path of entry from the root directory
+     * @param depth Depth of directory tree to print
+     * @param verbose Whether to print information, or just names of
+     * files/dirs
+     * @param indent Level of entry in printed tree
+     * @throws IOException
+     */
+    void print(DirectoryEntry entry, String path, int depth, boolean verbose, int indent) throws IOException {
+        //Children are read only for directories and aren't kept after printing
+        ArrayList<DirectoryEntry> children = null;
+        if (entry.isDir() && (depth > indent || verbose && format == FORMAT_TEXT)) {
+            children = entry.readRealChildren();
+        }
+        if (format == FORMAT_JSON) {
+            printJson(entry, path);
+        } else if (format == FORMAT_TSV) {
+            printTsv(entry, path);
+        } else {
+            printText(entry, verbose, indent, children);
+        }
+        if (children != null && !children.isEmpty() && depth > indent) {
+            if (verbose && format == FORMAT_TEXT) {
+                line(indent, "Children:");
+            }
+            String prefix = path.endsWith("/") ? path : path + "/";
+            for (DirectoryEntry child : children) {
+                print(child, prefix + child.getName(), depth, verbose, indent + 1);
+            }
+        }
+    }
+
+    /**
+     * Flushes buffered output
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private String getIndent(int k) {
+        if (k >= indents.length) {
+            String[] _indents = new String[k * 2 + 1];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < _indents.length; i++) {
+                _indents[i] = sb.toString();
+                sb.append("   ");
+            }
+            indents = _indents;
+        }
+        return indents[k];
+    }
+
+    private void line(int indent, String text) throws IOException {
+        out.write(getIndent(indent));
+        out.write(text);
+        out.write('\n');
+    }
+
+    private void printText(DirectoryEntry entry, boolean verbose, int indent, ArrayList<DirectoryEntry> children) throws IOException {
+        if (verbose) {
+            line(indent, "----------------------");
+            line(indent, "Short name: " + entry.getShortName());
+            line(indent, "Long name: " + entry.longName);
+            line(indent, "Read only: " + entry.is(DirectoryEntry.ATTR_READ_ONLY));
+            line(indent, "Hidden: " + entry.is(DirectoryEntry.ATTR_HIDDEN));
+            line(indent, "System: " + entry.is(DirectoryEntry.ATTR_SYSTEM));
+            line(indent, "Directory: " + entry.is(DirectoryEntry.ATTR_DIRECTORY));
+            line(indent, "Archive: " + entry.is(DirectoryEntry.ATTR_ARCHIVE));
+            line(indent, "Size (KB = 2^10 Bytes): " + (entry.getFileSize() / 1024.0));
+            line(indent, "Size (KB = 10^3 Bytes): " + (entry.getFileSize() / 1000.0));
+            if (entry.isDir()) {
+                line(indent, "Children count: " + children.size());
+            }
+        } else {
+            line(indent, entry.getName());
+        }
+    }
+
+    private void printJson(DirectoryEntry entry, String path) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"path\":");
+        appendJsonString(sb, path);
+        sb.append(",\"name\":");
+        appendJsonString(sb, entry.getName());
+        sb.append(",\"short_name\":");
+        String shortName = entry.isRootDir ? null : entry.getShortName();
+        if (shortName == null) {
+            sb.append("null");
+        } else {
+            appendJsonString(sb, DirectoryEntry.getDottedName(shortName));
+        }
+        sb.append(",\"dir\":").append(entry.isDir());
+        sb.append(",\"attributes\":").append(entry.getAttributes());
+        sb.append(",\"size\":").append(entry.getFileSize());
+        sb.append(",\"cluster\":").append(entry.dataClus);
+        sb.append(",\"created\":");
+        appendJsonTimestamp(sb, formatTimestamp(entry.getCrtDate(), entry.getCrtTime(), entry.getCrtTimeTenth()));
+        sb.append(",\"modified\":");
+        appendJsonTimestamp(sb, formatTimestamp(entry.getWrtDate(), entry.getWrtTime(), 0));
+        sb.append(",\"accessed\":");
+        appendJsonTimestamp(sb, formatDate(entry.getLstAccDate()));
+        sb.append("}\n");
+        out.write(sb.toString());
+    }
+
+    private void printTsv(DirectoryEntry entry, String path) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        appendTsvField(sb, path);
+        sb.append('\t');
+        String shortName = entry.isRootDir ? null : entry.getShortName();
+        if (shortName != null) {
+            appendTsvField(sb, DirectoryEntry.getDottedName(shortName));
+        }
+        sb.append('\t').append(entry.isDir() ? 1 : 0);
+        sb.append('\t').append(entry.getAttributes());
+        sb.append('\t').append(entry.getFileSize());
+        sb.append('\t').append(entry.dataClus);
+        sb.append('\t');
+        appendTsvTimestamp(sb, formatTimestamp(entry.getCrtDate(), entry.getCrtTime(), entry.getCrtTimeTenth()));
+        sb.append('\t');
+        appendTsvTimestamp(sb, formatTimestamp(entry.getWrtDate(), entry.getWrtTime(), 0));
+        sb.append('\t');
+        appendTsvTimestamp(sb, formatDate(entry.getLstAccDate()));
+        sb.append('\n');
+        out.write(sb.toString());
+    }
+
+    static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendJsonTimestamp(StringBuilder sb, String timestamp) {
+        if (timestamp == null) {
+            sb.append("null");
+        } else {
+            sb.append('"').append(timestamp).append('"');
+        }
+    }
+
+    static void appendTsvField(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\t') {
+                sb.append("\\t");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\\') {
+                sb.append("\\\\");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void appendTsvTimestamp(StringBuilder sb, String timestamp) {
+        if (timestamp != null) {
+            sb.append(timestamp);
+        }
+    }
+
+    /**
+     * Formats FAT date as "YYYY-MM-DD"
+     *
+     * @param date Date in FAT format
+     * @return Formatted date, null if date isn't set
+     */
+    static String formatDate(int date) {
+        if (date == 0) {
+            return null;
+        }
+        return String.format("%04d-%02d-%02d", 1980 + (date >> 9), (date >> 5) & 0x0F, date & 0x1F);
+    }
+
+    /**
+     * Formats FAT date and time as "YYYY-MM-DDTHH:MM:SS"
+     *
+     * @param date Date in FAT format
+     * @param time Time in FAT format
+     * @param tenth Count of 10 ms units (0..199), added to time
+     * @return Formatted timestamp, null if date isn't set
+     */
+    static String formatTimestamp(int date, int time, int tenth) {
+        String day = formatDate(date);
+        if (day == null) {
+            return null;
+        }
+        return String.format("%sT%02d:%02d:%02d", day, time >> 11, (time >> 5) & 0x3F, (time & 0x1F) * 2 + tenth / 100);
+    }
+}
@@ -0,0 +1,160 @@
+package fatmaster;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Access layer to the bytes of FAT volume. All reads are positional, so
+ * implementations don't keep any file pointer.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public abstract class Volume {
+
+    /**
+     * Size of direct buffer, used by transferTo() when zero-copy transfer is
+     * impossible
+     */
+    static final int TRANSFER_BUFFER_SIZE = 1 << 20;
+    /**
+     * File with FAT volume
+     */
+    RandomAccessFile file;
+    /**
+     * End position of the last read, used to count seeks (updated without
+     * synchronization, so count is approximate for concurrent reads)
+     */
+    private long lastEnd = -1;
+
+    Volume(File _file) throws IOException {
+        file = new RandomAccessFile(_file, "r");
+    }
+
+    Volume(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens volume, located in file. Tries to map it to memory, falls back
+     * to RandomAccessFile if it's impossible (e.g. file is a block device)
+     *
+     * @param file File with FAT volume image (or smth like /dev/sdc1)
+     * @return Volume instance
+     * @throws IOException
+     */
+    public static Volume open(File file) throws IOException {
+        try {
+            return new MappedVolume(file);
+        } catch (IOException e) {
+            return new RandomAccessVolume(file);
+        }
+    }
+
+    /**
+     * Reads len bytes, starting from the pos position of the volume
+     *
+     * @param pos Position in bytes from the beginning of the volume
+     * @param bytes Array of bytes, to which we should write what we've read
+     * @param offset Offset of the bytes array
+     * @param len Count of bytes to read
+     * @throws IOException if volume ends before len bytes are read
+     */
+    public abstract void read(long pos, byte[] bytes, int offset, int len) throws IOException;
+
+    /**
+     * Reads buffer.remaining() bytes, starting from the pos position of the
+     * volume, to buffer
+     *
+     * @param pos Position in bytes from the beginning of the volume
+     * @param buffer Buffer, to which we should write what we've read
+     * @throws IOException if volume ends before buffer is filled
+     */
+    public void read(long pos, ByteBuffer buffer) throws IOException {
+        countRead(pos, buffer.remaining());
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Writes count bytes, starting from the pos position of the volume, to
+     * target. Uses FileChannel.transferTo(), so bytes are copied without
+     * passing through the heap. If it's impossible, copies bytes through
+     * direct buffer.
+     *
+     * @param pos Position in bytes from the beginning of the volume
+     * @param count Count of bytes to write
+     * @param target Channel, to which we should write
+     * @throws IOException
+     */
+    public void transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+        countRead(pos, count);
+        FileChannel channel = file.getChannel();
+        while (count > 0) {
+            long transferred = channel.transferTo(pos, count, target);
+            if (transferred <= 0) {
+                break;
+            }
+            pos += transferred;
+            count -= transferred;
+        }
+        if (count > 0) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+            while (count > 0) {
+                buffer.clear();
+                if (buffer.limit() > count) {
+                    buffer.limit((int) count);
+                }
+                int read = channel.read(buffer, pos);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                pos += read;
+                count -= read;
+            }
+        }
+    }
+
+    /**
+     * Updates read counters of Stats
+     *
+     * @param pos Position of read
+     * @param len Count of bytes to read
+     */
+    void countRead(long pos, long len) {
+        if (pos != lastEnd) {
+            Stats.increment(Stats.SEEKS);
+            if (lastEnd >= 0) {
+                Stats.add(Stats.SEEK_DISTANCE, Math.abs(pos - lastEnd));
+            }
+        }
+        lastEnd = pos + len;
+        Stats.increment(Stats.READ_CALLS);
+        Stats.add(Stats.BYTES_READ, len);
+    }
+
+    /**
+     * Closes the volume
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,154 @@
+package fatmaster;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of 64-bit xxHash (XXH64). Input is consumed in
+ * 32-byte stripes by four independent accumulators, tail of input (less than
+ * a stripe) is kept until the next update or digest.
+ *
+ * @author George Agapov <george.agapov@gmail.com>
+ * @link https://github.com/georgeee/FAT-Master
+ * @license http://www.opensource.org/licenses/bsd-license.php
+ */
+public class XxHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private final long seed;
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    /**
+     * Tail of input, which doesn't fill a stripe yet
+     */
+    private final ByteBuffer tail = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Creates hash with zero seed
+     */
+    public XxHash64() {
+        this(0);
+    }
+
+    /**
+     * Creates hash
+     *
+     * @param seed Seed
+     */
+    public XxHash64(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    /**
+     * Resets hash to the initial state
+     */
+    public final void reset() {
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+        totalLength = 0;
+        tail.clear();
+    }
+
+    /**
+     * Updates hash with bytes
+     *
+     * @param bytes Array with input
+     * @param offset Offset of input in array
+     * @param len Count of bytes
+     */
+    public void update(byte[] bytes, int offset, int len) {
+        update(ByteBuffer.wrap(bytes, offset, len));
+    }
+
+    /**
+     * Updates hash with remaining bytes of buffer (position of buffer is
+     * moved to its limit)
+     *
+     * @param buffer Input
+     */
+    public void update(ByteBuffer buffer) {
+        totalLength += buffer.remaining();
+        if (tail.position() > 0) {
+            while (tail.hasRemaining() && buffer.hasRemaining()) {
+                tail.put(buffer.get());
+            }
+            if (tail.hasRemaining()) {
+                return;
+            }
+            tail.flip();
+            stripe(tail);
+            tail.clear();
+        }
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= 32) {
+            stripe(buffer);
+        }
+        buffer.order(order);
+        tail.put(buffer);
+    }
+
+    private void stripe(ByteBuffer buffer) {
+        v1 = round(v1, buffer.getLong());
+        v2 = round(v2, buffer.getLong());
+        v3 = round(v3, buffer.getLong());
+        v4 = round(v4, buffer.getLong());
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    /**
+     * Computes hash of the input, consumed so far (state isn't changed)
+     *
+     * @return Hash value
+     */
+    public long getValue() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += totalLength;
+        ByteBuffer rest = tail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        rest.flip();
+        while (rest.remaining() >= 8) {
+            h ^= round(0, rest.getLong());
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (rest.remaining() >= 4) {
+            h ^= (rest.getInt() & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+        }
+        while (rest.hasRemaining()) {
+            h ^= (rest.get() & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+}